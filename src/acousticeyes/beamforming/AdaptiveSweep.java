@@ -0,0 +1,255 @@
+package acousticeyes.beamforming;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* Coarse-to-fine delay-and-sum sweep over a steering table's grid. Most of the field of view is usually
+ * quiet, so instead of evaluating every pixel:
+ *  1. every coarseStep-th pixel in each direction is evaluated (plus the last row and column), which
+ *     cuts the grid into tiles with evaluated corners and gives an estimate of the frame maximum;
+ *  2. a tile whose largest corner value is at least valueThreshold * max, or whose corners differ by at
+ *     least gradientThreshold * max, is split in half both ways, evaluating the new corners, and the
+ *     halves are refined the same way, down to single pixels;
+ *  3. pixels left unevaluated are bilinearly interpolated from the corners of the tile they ended up in
+ *     (for a pixel on the edge between two such tiles, the first of them in grid order).
+ * So sources get full resolution, and the background costs about 1 / coarseStep^2 of a full sweep.
+ * A peak narrower than coarseStep that falls between coarse pixels can be missed, so coarseStep should
+ * stay below the width of the array's main lobe on the grid.
+ *
+ * Each coarse tile is refined by one thread, so the work can be spread over threads. Neighbouring tiles share
+ * their edge pixels: a pixel is claimed before it's evaluated, so it's only evaluated once, and whoever else
+ * needs it waits for the value. Refinement only records the final tiles; the interpolation is a single pass
+ * over them afterwards, so the result doesn't depend on which thread got where first. One sweep at a time.
+ */
+public class AdaptiveSweep {
+
+    public final int coarseStep;
+    public final double valueThreshold, gradientThreshold; // fractions of the coarse grid's maximum
+    private volatile int evaluatedPixels;
+
+    private static final long NOT_EVALUATED = Double.doubleToRawLongBits(Double.NaN);
+    private static final long PENDING = NOT_EVALUATED + 1; // another NaN: claimed, being evaluated
+    private static final long FAILED = NOT_EVALUATED + 2; // and another: claimed, but evaluating it threw
+
+    // shared between the threads of one sweep
+    private AtomicLongArray values = new AtomicLongArray(0); // Double bits of evaluated pixels, or one of the above
+
+    public AdaptiveSweep(int coarseStep, double valueThreshold, double gradientThreshold) {
+        if (coarseStep < 1) throw new IllegalArgumentException("coarseStep must be at least 1");
+        this.coarseStep = coarseStep;
+        this.valueThreshold = valueThreshold;
+        this.gradientThreshold = gradientThreshold;
+    }
+
+    /* Sweeps the whole table into res[thetaIndex][phiIndex], and returns the number of pixels evaluated.
+     * If executor isn't null, each phase is split between that many tasks on it. */
+    public int sweep(PhasedArray arr, double[][] spectra, FrequencyBands bands, SteeringTable table, double[][] res,
+                     Executor executor, int threads) {
+        return sweep(arr, new double[][][] {spectra}, 1, bands, table, res, executor, threads);
+    }
+
+    // same, with each pixel's value the mean over the first count windows' spectra (windows[w][mic])
+    public int sweep(PhasedArray arr, double[][][] windows, int count, FrequencyBands bands, SteeringTable table,
+                     double[][] res, Executor executor, int threads) {
+        int pixels = table.pixels();
+        if (values.length() != pixels) {
+            values = new AtomicLongArray(pixels);
+        }
+        for (int p = 0; p < pixels; p++) {
+            values.set(p, NOT_EVALUATED);
+        }
+        PhasedArray.PixelEvaluator shared = arr.new PixelEvaluator(windows, count, bands, table);
+        int[] ci = coarse(table.thetaSteps);
+        int[] cj = coarse(table.phiSteps);
+        AtomicInteger evaluated = new AtomicInteger();
+
+        // coarse grid, a row at a time
+        AtomicInteger nextRow = new AtomicInteger();
+        run(executor, threads, () -> {
+            PhasedArray.PixelEvaluator ev = shared.copy();
+            int n = 0;
+            int a;
+            while ((a = nextRow.getAndIncrement()) < ci.length) {
+                for (int j : cj) {
+                    if (evaluate(ev, table.pixel(ci[a], j))) {
+                        n++;
+                    }
+                }
+            }
+            evaluated.addAndGet(n);
+        });
+        double max = 0;
+        for (int i : ci) {
+            for (int j : cj) {
+                max = Math.max(max, value(table.pixel(i, j)));
+            }
+        }
+
+        // refine the tiles between coarse pixels
+        double valueLimit = valueThreshold * max;
+        double gradientLimit = gradientThreshold * max;
+        int tilesJ = cj.length - 1;
+        int tiles = (ci.length - 1) * tilesJ;
+        AtomicInteger nextTile = new AtomicInteger();
+        AtomicReferenceArray<List<int[]>> leaves = new AtomicReferenceArray<>(tiles); // final tiles of each coarse tile
+        run(executor, threads, () -> {
+            Refiner r = new Refiner(shared.copy(), table, valueLimit, gradientLimit);
+            int t;
+            while ((t = nextTile.getAndIncrement()) < tiles) {
+                int a = t / tilesJ;
+                int b = t % tilesJ;
+                List<int[]> l = new ArrayList<>();
+                r.refine(l, ci[a], ci[a + 1], cj[b], cj[b + 1]);
+                leaves.set(t, l);
+            }
+            evaluated.addAndGet(r.count);
+        });
+
+        // evaluated pixels, then the rest interpolated from the final tiles, in grid order
+        boolean[] done = new boolean[pixels];
+        for (int i = 0; i < table.thetaSteps; i++) {
+            for (int j = 0; j < table.phiSteps; j++) {
+                int p = table.pixel(i, j);
+                long bits = values.get(p);
+                if (bits != NOT_EVALUATED) {
+                    res[i][j] = Double.longBitsToDouble(bits);
+                    done[p] = true;
+                }
+            }
+        }
+        for (int t = 0; t < tiles; t++) {
+            for (int[] l : leaves.get(t)) {
+                interpolate(table, res, done, l[0], l[1], l[2], l[3]);
+            }
+        }
+        evaluatedPixels = evaluated.get();
+        return evaluatedPixels;
+    }
+
+    // pixels evaluated by the most recent sweep
+    public int getEvaluatedPixels() {
+        return evaluatedPixels;
+    }
+
+    // 0, step, 2 * step, ... and the last index
+    private int[] coarse(int steps) {
+        int n = (steps - 1) / coarseStep + 1;
+        int[] idx = new int[(steps - 1) % coarseStep == 0 ? n : n + 1];
+        for (int k = 0; k < n; k++) {
+            idx[k] = k * coarseStep;
+        }
+        idx[idx.length - 1] = steps - 1;
+        return idx;
+    }
+
+    // an evaluated pixel's value, waiting for it if another thread is still evaluating it. throws if that failed,
+    // so the whole sweep fails instead of waiting forever
+    private double value(int pixel) {
+        long bits;
+        while ((bits = values.get(pixel)) == PENDING) {
+            Thread.onSpinWait();
+        }
+        if (bits == FAILED) throw new IllegalStateException("evaluating pixel " + pixel + " failed");
+        return Double.longBitsToDouble(bits);
+    }
+
+    // evaluates pixel unless it's been claimed already. returns whether this call evaluated it
+    private boolean evaluate(PhasedArray.PixelEvaluator ev, int pixel) {
+        if (!values.compareAndSet(pixel, NOT_EVALUATED, PENDING)) return false;
+        double v;
+        try {
+            v = ev.evaluate(pixel);
+        } catch (Throwable t) {
+            values.set(pixel, FAILED); // release anyone waiting for it
+            throw t;
+        }
+        values.set(pixel, Double.doubleToRawLongBits(v));
+        return true;
+    }
+
+    // fills the pixels of the tile (i0, j0) .. (i1, j1) that aren't done yet, bilinearly from its corners
+    private void interpolate(SteeringTable table, double[][] res, boolean[] done, int i0, int i1, int j0, int j1) {
+        double v00 = res[i0][j0], v01 = res[i0][j1];
+        double v10 = res[i1][j0], v11 = res[i1][j1];
+        for (int i = i0; i <= i1; i++) {
+            double u = i1 == i0 ? 0 : (double) (i - i0) / (i1 - i0);
+            for (int j = j0; j <= j1; j++) {
+                int p = table.pixel(i, j);
+                if (done[p]) continue;
+                double w = j1 == j0 ? 0 : (double) (j - j0) / (j1 - j0);
+                res[i][j] = (1 - u) * ((1 - w) * v00 + w * v01) + u * ((1 - w) * v10 + w * v11);
+                done[p] = true;
+            }
+        }
+    }
+
+    private static void run(Executor executor, int threads, Runnable worker) {
+        if (executor == null) {
+            worker.run();
+            return;
+        }
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            FutureTask<Void> task = new FutureTask<>(worker, null);
+            tasks.add(task);
+            executor.execute(task);
+        }
+        try {
+            for (FutureTask<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // one thread's share of the refinement
+    private class Refiner {
+        private final PhasedArray.PixelEvaluator ev;
+        private final SteeringTable table;
+        private final double valueLimit, gradientLimit;
+        int count; // pixels evaluated
+
+        Refiner(PhasedArray.PixelEvaluator ev, SteeringTable table, double valueLimit, double gradientLimit) {
+            this.ev = ev;
+            this.table = table;
+            this.valueLimit = valueLimit;
+            this.gradientLimit = gradientLimit;
+        }
+
+        // the tile with corners (i0, j0) .. (i1, j1), which have been evaluated; the tiles it ends up
+        // divided into (i0, i1, j0, j1 each) are added to leaves
+        void refine(List<int[]> leaves, int i0, int i1, int j0, int j1) {
+            double v00 = value(table.pixel(i0, j0)), v01 = value(table.pixel(i0, j1));
+            double v10 = value(table.pixel(i1, j0)), v11 = value(table.pixel(i1, j1));
+            double hi = Math.max(Math.max(v00, v01), Math.max(v10, v11));
+            double lo = Math.min(Math.min(v00, v01), Math.min(v10, v11));
+            boolean divisible = i1 - i0 > 1 || j1 - j0 > 1;
+            if (!divisible || (hi < valueLimit && hi - lo < gradientLimit)) {
+                leaves.add(new int[] {i0, i1, j0, j1});
+                return;
+            }
+            int[] is = i1 - i0 > 1 ? new int[] {i0, (i0 + i1) / 2, i1} : new int[] {i0, i1};
+            int[] js = j1 - j0 > 1 ? new int[] {j0, (j0 + j1) / 2, j1} : new int[] {j0, j1};
+            for (int i : is) {
+                for (int j : js) {
+                    // a neighbouring tile may have claimed the shared edge already
+                    if (evaluate(ev, table.pixel(i, j))) {
+                        count++;
+                    }
+                }
+            }
+            for (int a = 0; a + 1 < is.length; a++) {
+                for (int b = 0; b + 1 < js.length; b++) {
+                    refine(leaves, is[a], is[a + 1], js[b], js[b + 1]);
+                }
+            }
+        }
+    }
+}
@@ -5,99 +5,558 @@ import acousticeyes.network.MicrophoneDataDispatcher;
 import acousticeyes.ui.MainPanel;
 import acousticeyes.util.WindowFunctions;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /* Manages a pool of worker threads to perform the actual beamforming computations upon
- * receiving a new MicFrameData from MicrophoneDataDispatcher. There is a periodic task
- * that runs once per frame (if it is not already running, i.e., if the previous frame's
- * computation finished in time) that checks to see if new microphone data is available,
- * and begins processing it. If processing takes too long, old mic data is dropped and
- * replaced with new data, so that an ever-growing backlog of work doesn't form.
+ * receiving a new MicFrameData from MicrophoneDataDispatcher. Work is cut into small tiles
+ * that the pool's workers steal from each other, so uneven pixel costs balance out.
+ *
+ * Frames go through a two-stage pipeline: the spectrum stage (frameExecutor) computes the mic
+ * spectra and hands them to the beamforming stage (beamformExecutor), which computes the heatmap
+ * and passes it to the display. Spectra and heatmaps are double-buffered, so the spectra of
+ * frame N+1 are computed while frame N is being beamformed, and sustained throughput is set by
+ * the slower stage rather than by the sum of both. A frame is picked up as soon as it arrives,
+ * unless the spectrum stage is still busy or both spectra buffers are taken, in which case it
+ * waits. If processing takes too long, old mic data is dropped and replaced with new data, so
+ * that an ever-growing backlog of work doesn't form.
+ * Frames come from MicrophoneDataDispatcher's pool, so every frame that passes through here
+ * (processed or dropped) is released back to it.
+ *
+ * A frame's spectra are those of the STFT windows completed during it (see StreamingStft), kept
+ * separate: every engine beamforms each window and averages the outputs, powers or cross-spectra
+ * over them, so a frame's windows never add up coherently.
+ *
+ * In tracked-bin mode (trackBins), frames skip the spectrum stage altogether. The dispatcher feeds
+ * each packet to a SlidingDftBank instead, and every few packets a snapshot of its bins goes straight
+ * to the beamforming stage, which runs the CSM engine on them. Snapshots are handed over latest-wins
+ * like frames, so a beamforming stage slower than the packet rate skips snapshots rather than falling behind.
  */
 public class BeamformingManager {
 
-    private static final int NTHREADS = 8;
     private static final int WINDOW_SIZE = 256; // DFT window size for computing spectra
-    private static final int OVERLAP = 0; // how much to overlap adjacent DFT windows
+    // default STFT hop: two windows per frame, so every sample is used and the window count stays constant
+    private static final int DEFAULT_HOP = MicrophoneDataDispatcher.SAMPLES_PER_FRAME / 2;
     private static final double[] WINDOW = WindowFunctions.blackmanHarrisWindow(WINDOW_SIZE); // cached window function values
 
     private static final double FOV = Math.PI / 2;
-    private static final int STEPS = 64; // should be a multiple of NTHREADS
+    private static final int STEPS = 64;
+    private static final int TILE_PIXELS = 32; // beamforming work unit: small enough for stealing to even out uneven pixel costs
 
-    private Executor executor = new ThreadPoolExecutor(NTHREADS, NTHREADS, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    // one worker per core; frame latency scales with the core count
+    private ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
     private PhasedArray array;
-    private MicFrameData latestFrame;
-    private MicFrameData lastProcessedFrame;
+    private Executor frameExecutor = Executors.newSingleThreadExecutor();
+    private Executor beamformExecutor = Executors.newSingleThreadExecutor();
+    // written by the dispatcher's assembly thread, taken by the spectrum stage; the atomic swap also publishes the frame's contents
+    private AtomicReference<MicFrameData> latestFrame = new AtomicReference<>();
+    private AtomicBoolean processing = new AtomicBoolean(false); // whether a processFrames task is running or queued
+    private volatile boolean lossless; // see setLossless
+    private final Object frameTaken = new Object(); // notified when the spectrum stage takes latestFrame, in lossless mode
+    // spectra buffers not in use by the beamforming stage (there are two in all)
+    private BlockingQueue<SpectraBuffer> freeSpectra = new ArrayBlockingQueue<>(2);
+    private AtomicInteger beamforming = new AtomicInteger(); // spectra handed to the beamforming stage and not finished yet
+    private final PipelineStage spectrumStage = new PipelineStage("spectrum stage");
+    private final PipelineStage beamformingStage = new PipelineStage("beamforming stage");
     private MainPanel mainPanel;
+    private volatile int hop = DEFAULT_HOP;
+    private volatile SlidingDftBank binTracker; // if set, heatmaps come from its bins rather than from frames
+    private volatile boolean trackedRemoveDiagonal;
+    // tracked-bin snapshots: three in all, for the one being beamformed, the latest one and the one being filled
+    private BlockingQueue<SpectraBuffer> freeSnapshots = new ArrayBlockingQueue<>(3);
+    private AtomicReference<SpectraBuffer> latestSnapshot = new AtomicReference<>();
+    // spectrum stage only
+    private StreamingStft[] stft; // per mic, carrying windows across frame boundaries
+    private int expectedSeq; // startSeq of the frame that would follow on from the last one processed
+    // beamforming stage only, as are all the fields up to the volatiles
+    private SteeringTable steering; // built on the first frame, then reused
+    private double[] pixels = new double[0]; // flat heatmap buffer written by the tiles, indexed by steering table pixel
+    private double[][][] heatmaps = new double[2][STEPS][STEPS]; // handed to the display alternately
+    private int nextHeatmap;
+    private CsmBeamformer csm;
+    private double[] csmBuiltFor;
+    private GemmBeamformer gemm;
+    private double[] gemmBuiltFor;
+    // per-bin delay-and-sum power of each pixel, averaged over time, indexed by pixel * bins + bin (see setAveragingTime)
+    private double[] dasAverage = new double[0];
+    private Subarrays.WeightTable dasAverageTable; // the bins it was built for
+    private long dasAveraged; // updates in dasAverage
+    private CsmBeamformer trackedCsm;
+    private SlidingDftBank trackedCsmBuiltFor;
+    // frequencies for the CSM engine (see useCsmEngine); null to use full-spectrum delay-and-sum
+    private volatile double[] csmFrequencies;
+    private volatile boolean csmRemoveDiagonal;
+    // frequencies for the GEMM engine (see useGemmEngine); null for none
+    private volatile double[] gemmFrequencies;
+    private volatile double averagingTime; // time constant of the CSM average, in seconds; 0 for none
+    private volatile FrequencyBands analysisBands; // if set, delay-and-sum only covers these frequencies
+    private volatile AdaptiveSweep adaptiveSweep; // if set, delay-and-sum refines coarse-to-fine instead of evaluating every pixel
+    private volatile int evaluatedPixels; // by the latest frame's sweep
+    private volatile double pixelRate; // pixels/s evaluated by the latest frame's sweep
 
     public BeamformingManager(PhasedArray arr, MainPanel mp) {
         this.array = arr;
         this.mainPanel = mp;
-        ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
-        scheduler.scheduleAtFixedRate(this::processFrame, 0, MicrophoneDataDispatcher.MS_PER_FRAME, TimeUnit.MILLISECONDS);
+        freeSpectra.add(new SpectraBuffer(arr.mics.size()));
+        freeSpectra.add(new SpectraBuffer(arr.mics.size()));
+        for (int i = 0; i < 3; i++) {
+            SpectraBuffer buf = new SpectraBuffer(arr.mics.size());
+            buf.ensureWindows(1);
+            buf.count = 1;
+            freeSnapshots.add(buf);
+        }
     }
 
-    // set the new latest frame data, but do not immediately start a computation. this will get picked
-    // up in a subsequent run of processFrame (or will be replaced again before then)
+    // set the new latest frame data, and start processing it right away if we aren't busy with an earlier
+    // frame. otherwise it gets picked up when the spectrum stage is free (or is replaced again before then)
     public void updateLatestFrame(MicFrameData mfd) {
-        latestFrame = mfd;
+        if (lossless) {
+            synchronized (frameTaken) {
+                while (latestFrame.get() != null) {
+                    try {
+                        frameTaken.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break; // fall back to replacing it
+                    }
+                }
+            }
+        }
+        mfd.queuedNanos = System.nanoTime();
+        MicFrameData dropped = latestFrame.getAndSet(mfd);
+        if (dropped != null) {
+            dropped.release(); // never got processed
+        } else {
+            spectrumStage.enqueued();
+        }
+        if (processing.compareAndSet(false, true)) {
+            frameExecutor.execute(this::processFrames);
+        }
+    }
+
+    // Switches delay-and-sum to the GEMM engine (see GemmBeamformer), evaluating only the bins closest to the given
+    // frequencies as one batched matrix product on the pool. Results are the same as delay-and-sum over those bins
+    // for a single window; over a frame's windows, it's each bin's power rather than its magnitude that's averaged.
+    // null switches back to the full-spectrum sweep. the CSM engine, if selected, takes precedence. throws
+    // IllegalArgumentException for a frequency outside the spectrum (see CsmBeamformer.binsFor). takes effect from the next frame
+    public void useGemmEngine(double[] frequencies) {
+        double[] f = frequencies == null ? null : frequencies.clone();
+        if (f != null) {
+            CsmBeamformer.binsFor(f, WINDOW_SIZE); // checked here, or the engine would fail to build on every frame
+        }
+        gemmFrequencies = f;
+    }
+
+    // In lossless mode, updateLatestFrame waits for the spectrum stage to take the previous frame instead of replacing
+    // it, so every frame gets processed and the caller is held back to the pipeline's pace. For offline replays,
+    // where results shouldn't depend on timing; live, it would just move the backlog into the network buffers
+    public void setLossless(boolean lossless) {
+        this.lossless = lossless;
+    }
+
+    // Switches to the cross-spectral-matrix engine (see CsmBeamformer), evaluating only the bins closest to
+    // the given frequencies, optionally with the CSM diagonal removed. null switches back to delay-and-sum.
+    // throws IllegalArgumentException for a frequency outside the spectrum. takes effect from the next frame
+    public void useCsmEngine(double[] frequencies, boolean removeDiagonal) {
+        double[] f = frequencies == null ? null : frequencies.clone();
+        if (f != null) {
+            CsmBeamformer.binsFor(f, WINDOW_SIZE); // checked here, or the engine would fail to build on every frame
+        }
+        csmRemoveDiagonal = removeDiagonal;
+        csmFrequencies = f;
+    }
+
+    // Switches to tracked-bin mode: the bins closest to the given frequencies are followed packet by packet with a
+    // sliding DFT (Hann windowed, WINDOW_SIZE samples long) and beamformed with the CSM engine every packetsPerHeatmap
+    // packets, so heatmaps come at up to 48000 / (7 * packetsPerHeatmap) per second instead of once a frame. Each
+    // packet costs about three bins' worth of work per tracked bin and mic, on the dispatcher's assembly thread,
+    // so this only pays off for a handful of bins. null switches back to frame processing. throws
+    // IllegalArgumentException for a frequency outside the spectrum (or in its first or last bin, which have no
+    // neighbour on one side for the Hann window)
+    public void trackBins(double[] frequencies, int packetsPerHeatmap, boolean removeDiagonal) {
+        // built here, so that bad frequencies are rejected before anything changes
+        SlidingDftBank tracker = frequencies == null ? null :
+                new SlidingDftBank(array.mics.size(), WINDOW_SIZE, CsmBeamformer.binsFor(frequencies, WINDOW_SIZE), packetsPerHeatmap);
+        trackedRemoveDiagonal = removeDiagonal;
+        binTracker = tracker;
+    }
+
+    // the bank MicrophoneDataDispatcher should feed packets to, or null if not in tracked-bin mode
+    public SlidingDftBank getBinTracker() {
+        return binTracker;
+    }
+
+    // Called by MicrophoneDataDispatcher's assembly thread when tracker has a new update: takes a snapshot of its
+    // bins and queues it for the beamforming stage, replacing the previous one if that hasn't been picked up yet
+    public void binsUpdated(SlidingDftBank tracker) {
+        SpectraBuffer buf = freeSnapshots.poll();
+        if (buf == null) return; // can't happen with a single caller, but don't block the assembly thread if it does
+        tracker.snapshot(buf.windows[0]);
+        buf.tracker = tracker;
+        buf.queuedNanos = System.nanoTime();
+        SpectraBuffer dropped = latestSnapshot.getAndSet(buf);
+        if (dropped != null) {
+            freeSnapshots.add(dropped); // never got beamformed; the task queued for it takes this one instead
+        } else {
+            beamforming.incrementAndGet();
+            beamformingStage.enqueued();
+            beamformExecutor.execute(this::beamformSnapshot);
+        }
+    }
+
+    // Averages over time, with this time constant in seconds, for a steadier heatmap without a longer window. Every
+    // engine averages power rather than complex spectra: the CSM engine (useCsmEngine, trackBins) its cross-spectral
+    // matrices (see CsmBeamformer.computeCsm), and the GEMM engine and delay-and-sum each pixel's power per bin.
+    // For delay-and-sum that's pixels * 128 doubles of state (4 MB), and every pixel has to be updated every frame,
+    // so it takes precedence over the adaptive sweep. Updates skipped under load don't count towards the time
+    // constant. 0 (the default) turns averaging off. takes effect from the next update
+    public void setAveragingTime(double seconds) {
+        if (seconds < 0) throw new IllegalArgumentException("averaging time can't be negative");
+        averagingTime = seconds;
     }
 
-    public void processFrame() {
+    // restricts delay-and-sum to the bins within bands (e.g. new FrequencyBands(2000, 4000)), which makes frame
+    // processing time proportional to their bandwidth. null goes back to the whole spectrum. takes effect from the next frame
+    public void setAnalysisBands(FrequencyBands bands) {
+        analysisBands = bands;
+    }
+
+    // sets the STFT hop (1 to WINDOW_SIZE samples): a window is transformed every hop samples of each mic's stream,
+    // and each window completed during a frame is beamformed, so beamforming costs about SAMPLES_PER_FRAME / hop
+    // times as much as for a single window per frame. takes effect from the next frame
+    public void setHop(int hop) {
+        if (hop < 1 || hop > WINDOW_SIZE) throw new IllegalArgumentException("hop must be between 1 and " + WINDOW_SIZE);
+        this.hop = hop;
+    }
+
+    // switches delay-and-sum to a coarse-to-fine sweep (e.g. new AdaptiveSweep(8, 0.5, 0.1)), which only evaluates
+    // pixels around sources and interpolates the rest. null goes back to evaluating every pixel. not used while
+    // setAveragingTime is on. takes effect from the next frame
+    public void setAdaptiveSweep(AdaptiveSweep sweep) {
+        adaptiveSweep = sweep;
+    }
+
+    // number of pixels actually beamformed for the latest frame (STEPS * STEPS unless the adaptive sweep is on)
+    public int getEvaluatedPixels() {
+        return evaluatedPixels;
+    }
+
+    // pixels/s achieved by the CSM engine on the latest frame (by the whole pool), or 0 if it isn't in use
+    public double getCsmPixelRate() {
+        return csmFrequencies == null ? 0 : pixelRate;
+    }
+
+    // pixels/s evaluated on the latest frame, whichever engine was used (by the whole pool)
+    public double getPixelRate() {
+        return pixelRate;
+    }
+
+    public PipelineStage getSpectrumStage() {
+        return spectrumStage;
+    }
+
+    public PipelineStage getBeamformingStage() {
+        return beamformingStage;
+    }
+
+    // whether a frame is in either stage of the pipeline or waiting to be
+    public boolean isBusy() {
+        return processing.get() || beamforming.get() > 0;
+    }
+
+    private void processFrames() {
+        do {
+            computeSpectra();
+            processing.set(false);
+            // a frame may have arrived after computeSpectra took its frame but before we cleared the flag
+        } while (latestFrame.get() != null && processing.compareAndSet(false, true));
+    }
+
+    // spectrum stage: computes the spectra of the latest frame into a free buffer, and queues them for beamforming
+    private void computeSpectra() {
+        SpectraBuffer buf;
+        try {
+            buf = freeSpectra.take(); // waits while the beamforming stage holds both buffers
+        } catch (InterruptedException e) {
+            return;
+        }
+        // take ownership of the frame only now, so that a newer one can still replace it while we wait for a buffer
+        MicFrameData frame = latestFrame.getAndSet(null);
+        if (lossless) {
+            synchronized (frameTaken) {
+                frameTaken.notifyAll();
+            }
+        }
+        if (frame == null) {
+            freeSpectra.add(buf);
+            return;
+        }
+        long queued = frame.queuedNanos; // read before the frame goes back to its pool
+        spectrumStage.started();
+        long start = System.nanoTime();
+        if (binTracker != null) {
+            // heatmaps come from the tracked bins, which the dispatcher has already fed this frame's samples to
+            frame.release();
+            freeSpectra.add(buf);
+            spectrumStage.finished(queued, start);
+            return;
+        }
+        SpectraBuffer target = buf;
         try {
-            MicFrameData frame = latestFrame; // assign to a local variable so it doesn't get changed out from under us halfway through
-            if (frame == null) return;
-            if (frame == lastProcessedFrame) return;
-            lastProcessedFrame = frame;
-            for (int m = 0; m < array.mics.size(); m++) {
-                array.mics.get(m).recording = frame.samples[m];
+            int h = hop;
+            if (stft == null || stft[0].hop != h) {
+                stft = new StreamingStft[array.mics.size()];
+                for (int m = 0; m < stft.length; m++) {
+                    stft[m] = new StreamingStft(WINDOW, h);
+                }
             }
-            // compute spectra
-            double[][] spectra = new double[array.mics.size()][];
-            List<FutureTask<Void>> dftTasks = new ArrayList<>();
-            for (int t = 0; t < NTHREADS; t++) {
-                final int threadNum = t;
-                dftTasks.add(new FutureTask<>(() -> {
-                    for (int m = threadNum; m < array.mics.size(); m += NTHREADS) {
-                        spectra[m] = array.mics.get(m).computeSpectrum(OVERLAP, WINDOW);
+            // the stream only carries on across frames that follow each other; after a dropped frame it starts over
+            boolean restart = frame.startSeq != expectedSeq;
+            expectedSeq = frame.startSeq + MicrophoneDataDispatcher.PACKETS_PER_FRAME;
+            StreamingStft[] streams = stft;
+            int length = frame.pcm != null ? MicrophoneDataDispatcher.SAMPLES_PER_FRAME : frame.samples[0].length;
+            target.ensureWindows(streams[0].maxWindows(length));
+            pool.invoke(new RangeTask((from, to) -> {
+                for (int m = from; m < to; m++) {
+                    if (restart) {
+                        streams[m].reset();
+                    }
+                    int n;
+                    if (frame.pcm != null) {
+                        n = streams[m].process(frame.pcm, m * MicrophoneDataDispatcher.SAMPLES_PER_FRAME,
+                                length, MicFrameData.PCM_SCALE, target.byMic[m]);
+                    } else {
+                        n = streams[m].process(frame.samples[m], 0, length, target.byMic[m]);
+                    }
+                    if (m == 0) {
+                        target.count = n; // every mic's stream is at the same position, so they all complete as many
                     }
-                }, null));
-                executor.execute(dftTasks.get(t));
+                }
+            }, 0, array.mics.size(), 1));
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // drop this frame, but keep processing later ones
+            freeSpectra.add(buf);
+            return;
+        } finally {
+            frame.release();
+            spectrumStage.finished(queued, start);
+        }
+        if (buf.count == 0) {
+            freeSpectra.add(buf); // no window was completed during the frame, so there's nothing to beamform
+            return;
+        }
+        buf.queuedNanos = System.nanoTime();
+        beamforming.incrementAndGet();
+        beamformingStage.enqueued();
+        beamformExecutor.execute(() -> beamform(buf));
+    }
+
+    // beamforming stage: computes the heatmap from one frame's spectra and displays it
+    private void beamform(SpectraBuffer buf) {
+        beamformingStage.started();
+        long start = System.nanoTime();
+        long queued = buf.queuedNanos;
+        boolean released = false;
+        try {
+            buildSteering();
+            double[] freqs = csmFrequencies;
+            if (freqs != csmBuiltFor) {
+                csm = freqs == null ? null : new CsmBeamformer(array, steering, CsmBeamformer.binsFor(freqs, steering.spectrumLength), csmRemoveDiagonal);
+                csmBuiltFor = freqs;
             }
-            // wait for tasks to finish
-            for (int t = 0; t < NTHREADS; t++) {
-                dftTasks.get(t).get();
+            double[] gemmFreqs = gemmFrequencies;
+            if (gemmFreqs != gemmBuiltFor) {
+                gemm = gemmFreqs == null ? null : new GemmBeamformer(array, steering,
+                        CsmBeamformer.binsFor(gemmFreqs, steering.spectrumLength), new ComplexGemm(pool, pool.getParallelism()));
+                gemmBuiltFor = gemmFreqs;
             }
+            double[][] heatmap = sweep(buf.windows, buf.count, csm, gemm, analysisBands, adaptiveSweep,
+                    (double) MicrophoneDataDispatcher.SAMPLES_PER_FRAME / MicrophoneDataDispatcher.SAMPLES_PER_SECOND);
+            // done with the spectra, so the spectrum stage can fill this buffer again while the heatmap is displayed
+            freeSpectra.add(buf);
+            released = true;
+            mainPanel.heatmapUpdated(heatmap);
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // drop this frame, but keep processing later ones
+        } finally {
+            if (!released) {
+                freeSpectra.add(buf);
+            }
+            beamformingStage.finished(queued, start);
+            beamforming.decrementAndGet();
+        }
+    }
 
-            // run DAS beamforming - split into NTHREADS horizontal bands to be processed concurrently
-            double[][] heatmap = new double[STEPS][STEPS];
-            List<FutureTask<Void>> beamformingTasks = new ArrayList<>();
-            for (int t = 0; t < NTHREADS; t++) {
-                final int threadNum = t;
-                double phiStep = FOV / NTHREADS;
-                double phiPixelStep = FOV / STEPS;
-                beamformingTasks.add(new FutureTask<>(() -> {
-                    double phiStart = threadNum * phiStep - (FOV / 2);
-                    double[][] heatmapSlice = array.sweepBeamFreqDomain(spectra, -FOV / 2, FOV / 2, STEPS, phiStart, phiStart + phiStep - phiPixelStep, STEPS / NTHREADS);
-                    for (int x = 0; x < STEPS; x++) {
-                        for (int y = 0; y < STEPS / NTHREADS; y++) {
-                            // no synchronization needed here since different threads access disjoint regions of heatmap
-                            heatmap[x][y + threadNum * STEPS / NTHREADS] = heatmapSlice[x][y];
-                        }
+    // beamforming stage, tracked-bin mode: computes the heatmap from the latest snapshot and displays it
+    private void beamformSnapshot() {
+        beamformingStage.started();
+        long start = System.nanoTime();
+        SpectraBuffer buf = latestSnapshot.getAndSet(null); // never null: binsUpdated queues one task per snapshot it sets
+        long queued = buf.queuedNanos;
+        boolean released = false;
+        try {
+            buildSteering();
+            if (buf.tracker != trackedCsmBuiltFor) {
+                trackedCsm = new CsmBeamformer(array, steering, buf.tracker.bins(), trackedRemoveDiagonal);
+                trackedCsmBuiltFor = buf.tracker;
+            }
+            double[][] heatmap = sweep(buf.windows, 1, trackedCsm, null, null, null, (double) buf.tracker.packetsPerUpdate
+                    * MicrophoneDataDispatcher.SAMPLES_PER_FRAME / MicrophoneDataDispatcher.PACKETS_PER_FRAME / MicrophoneDataDispatcher.SAMPLES_PER_SECOND);
+            freeSnapshots.add(buf);
+            released = true;
+            mainPanel.heatmapUpdated(heatmap);
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // drop this snapshot, but keep processing later ones
+        } finally {
+            if (!released) {
+                freeSnapshots.add(buf);
+            }
+            beamformingStage.finished(queued, start);
+            beamforming.decrementAndGet();
+        }
+    }
+
+    // builds the steering table on first use; beamforming stage only
+    private void buildSteering() {
+        if (steering == null) {
+            // phi runs from -FOV/2 in steps of FOV/STEPS; theta spans the whole FOV
+            steering = SteeringTable.get(array, -FOV / 2, FOV / 2, STEPS, -FOV / 2, FOV / 2 - FOV / STEPS, STEPS, WINDOW_SIZE);
+            pixels = new double[steering.pixels()];
+        }
+    }
+
+    // computes a heatmap from the first count windows' spectra (windows[w][mic]), with engine if it isn't null, then
+    // gemm if that isn't, and delay-and-sum otherwise, into the next of the heatmap buffers. interval is the time in
+    // seconds since the previous update, for the CSM average. beamforming stage only
+    private double[][] sweep(double[][][] windows, int count, CsmBeamformer engine, GemmBeamformer gemm, FrequencyBands bands,
+                             AdaptiveSweep adaptive, double interval) {
+        double[][] heatmap = heatmaps[nextHeatmap];
+        nextHeatmap ^= 1;
+        long sweepStart = System.nanoTime();
+        double tau = averagingTime;
+        boolean dasAveraging = false;
+        if (engine == null && gemm != null) {
+            // the windows are its snapshots, and the whole update goes into its average at once
+            if (tau <= 0) {
+                gemm.resetAverage();
+            }
+            gemm.beamform(windows, count, tau > 0 ? Math.exp(-interval / tau) : 0, heatmap);
+            evaluatedPixels = steering.pixels();
+        } else if (engine == null && adaptive != null && tau <= 0) {
+            evaluatedPixels = adaptive.sweep(array, windows, count, bands, steering, heatmap, pool, pool.getParallelism());
+        } else {
+            // run beamforming on tiles of TILE_PIXELS pixels, which idle workers steal from busy ones.
+            // tiles are disjoint ranges of pixels, so no synchronization is needed on the buffer
+            double[] px = pixels;
+            PhasedArray.PixelEvaluator das = engine == null ? array.new PixelEvaluator(windows, count, bands, steering) : null;
+            double[] average = null, weights = null;
+            if (engine != null) {
+                // each window's cross-spectra are an update of their own, spread evenly over the interval
+                if (tau <= 0) {
+                    engine.resetAverage(); // no averaging over time, but still the mean over this update's windows
+                }
+                double decay = tau > 0 ? Math.exp(-interval / count / tau) : 1;
+                for (int w = 0; w < count; w++) {
+                    engine.computeCsm(windows[w], decay);
+                }
+            } else if (tau > 0) {
+                // per-bin average of the delay-and-sum powers, with each window an update of its own like above
+                Subarrays.WeightTable wt = das.weightTable();
+                if (wt != dasAverageTable || dasAverage.length != px.length * wt.bins) {
+                    dasAverage = new double[px.length * wt.bins];
+                    dasAverageTable = wt;
+                    dasAveraged = 0;
+                }
+                double decay = Math.exp(-interval / count / tau);
+                weights = new double[count];
+                for (int w = 0; w < count; w++) {
+                    weights[w] = Math.max(1 - decay, 1.0 / ++dasAveraged); // as in CsmBeamformer.computeCsm
+                }
+                average = dasAverage;
+                dasAveraging = true;
+            }
+            double[] avg = average, wts = weights;
+            pool.invoke(new RangeTask((from, to) -> {
+                PhasedArray.PixelEvaluator ev = das == null ? null : das.copy();
+                for (int p = from; p < to; p++) {
+                    if (ev == null) {
+                        px[p] = engine.evaluate(p);
+                    } else {
+                        px[p] = avg == null ? ev.evaluate(p) : ev.evaluateAveraged(p, avg, wts);
                     }
-                }, null));
-                executor.execute(beamformingTasks.get(t));
+                }
+            }, 0, px.length, TILE_PIXELS));
+            for (int i = 0; i < STEPS; i++) {
+                System.arraycopy(px, steering.pixel(i, 0), heatmap[i], 0, STEPS);
+            }
+            evaluatedPixels = px.length;
+        }
+        if (!dasAveraging) {
+            dasAveraged = 0; // the delay-and-sum average starts over whenever it's picked up again
+        }
+        pixelRate = evaluatedPixels * 1e9 / Math.max(System.nanoTime() - sweepStart, 1);
+        return heatmap;
+    }
+
+    private static class SpectraBuffer {
+        double[][][] windows = new double[0][][]; // indexed by window and then mic, reused from frame to frame
+        double[][][] byMic; // the same spectra, indexed by mic and then window, as StreamingStft fills them in
+        int count; // windows filled in
+        long queuedNanos; // when it was queued for the beamforming stage
+        SlidingDftBank tracker; // for tracked-bin snapshots, the bank they were taken from
+
+        SpectraBuffer(int mics) {
+            byMic = new double[mics][0][];
+        }
+
+        // makes room for n windows, keeping the spectra already allocated
+        void ensureWindows(int n) {
+            if (windows.length >= n) return;
+            int mics = byMic.length;
+            double[][][] w = Arrays.copyOf(windows, n);
+            for (int i = windows.length; i < n; i++) {
+                w[i] = new double[mics][WINDOW_SIZE];
             }
-            // wait for tasks to finish
-            for (int t = 0; t < NTHREADS; t++) {
-                beamformingTasks.get(t).get();
+            for (int m = 0; m < mics; m++) {
+                byMic[m] = new double[n][];
+                for (int i = 0; i < n; i++) {
+                    byMic[m][i] = w[i][m];
+                }
             }
-            // display result
-            mainPanel.heatmapUpdated(heatmap);
+            windows = w;
+        }
+    }
+
+    // Runs body over [from, to) on the pool: ranges larger than grain are split in half, so that idle workers
+    // can steal one half while the current worker carries on with the other
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-        } catch (InterruptedException | ExecutionException ignored) {
+        interface Body {
+            void run(int from, int to);
+        }
+
+        private final Body body;
+        private final int from, to, grain;
+
+        RangeTask(Body body, int from, int to, int grain) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(body, from, mid, grain), new RangeTask(body, mid, to, grain));
         }
     }
 }
@@ -0,0 +1,126 @@
+package acousticeyes.beamforming;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Multi-threaded complex matrix multiply, C = A x B, on split real/imaginary arrays (so the inner loops
+ * stream through plain double[]s rather than Complex objects or interleaved pairs).
+ *
+ * All matrices are row-major. A batch of independent products (e.g. one per frequency bin) is done in a
+ * single call: the batch is cut into tiles of ROW_BLOCK rows of C, which worker threads pull off a shared
+ * counter, so uneven tiles don't leave threads idle. Within a tile, the k dimension is walked in chunks of
+ * K_BLOCK, so that those rows of B are reused by all of the tile's rows while they're in cache. Only k is
+ * blocked (a tile always spans all n columns), which suits the narrow B and C of beamforming, with one
+ * column per snapshot; it is not a general cache-blocked GEMM for large square matrices.
+ */
+public class ComplexGemm {
+
+    private static final int ROW_BLOCK = 32;
+    private static final int K_BLOCK = 128;
+
+    private final int threads;
+    private final Executor executor;
+
+    // with a pool of its own
+    public ComplexGemm(int threads) {
+        this(Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "ComplexGemm");
+            t.setDaemon(true);
+            return t;
+        }), threads);
+    }
+
+    // running each product on up to threads threads: the calling thread, and tasks on executor
+    public ComplexGemm(Executor executor, int threads) {
+        this.threads = threads;
+        this.executor = executor;
+    }
+
+    /* For each b in [0, batch): C_b = A_b x B_b, where A_b is m x k, B_b is k x n and C_b is m x n.
+     * Matrix b starts at index b * stride of its arrays (e.g. aRe[b * aStride + row * k + col]).
+     * C is overwritten.
+     */
+    public void multiplyBatched(int batch, int m, int n, int k,
+                                double[] aRe, double[] aIm, int aStride,
+                                double[] bRe, double[] bIm, int bStride,
+                                double[] cRe, double[] cIm, int cStride) {
+        int rowTiles = (m + ROW_BLOCK - 1) / ROW_BLOCK;
+        int tiles = batch * rowTiles;
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int t;
+            while ((t = next.getAndIncrement()) < tiles) {
+                int b = t / rowTiles;
+                int row0 = (t % rowTiles) * ROW_BLOCK;
+                multiplyTile(row0, Math.min(row0 + ROW_BLOCK, m), n, k,
+                        aRe, aIm, b * aStride, bRe, bIm, b * bStride, cRe, cIm, b * cStride);
+            }
+        };
+        int nt = Math.min(threads, tiles);
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        for (int i = 1; i < nt; i++) {
+            FutureTask<Void> task = new FutureTask<>(worker, null);
+            tasks.add(task);
+            executor.execute(task);
+        }
+        worker.run(); // the calling thread does its share too
+        try {
+            for (FutureTask<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void multiply(int m, int n, int k, double[] aRe, double[] aIm, double[] bRe, double[] bIm, double[] cRe, double[] cIm) {
+        multiplyBatched(1, m, n, k, aRe, aIm, 0, bRe, bIm, 0, cRe, cIm, 0);
+    }
+
+    // rows row0 .. row1-1 of one product
+    private static void multiplyTile(int row0, int row1, int n, int k,
+                                     double[] aRe, double[] aIm, int aOff,
+                                     double[] bRe, double[] bIm, int bOff,
+                                     double[] cRe, double[] cIm, int cOff) {
+        for (int i = row0; i < row1; i++) {
+            for (int j = 0; j < n; j++) {
+                cRe[cOff + i * n + j] = 0;
+                cIm[cOff + i * n + j] = 0;
+            }
+        }
+        for (int k0 = 0; k0 < k; k0 += K_BLOCK) {
+            int k1 = Math.min(k0 + K_BLOCK, k);
+            for (int i = row0; i < row1; i++) {
+                int a = aOff + i * k;
+                int c = cOff + i * n;
+                if (n == 1) {
+                    // matrix-vector product (a single snapshot): accumulate in registers
+                    double sr = 0, si = 0;
+                    for (int l = k0; l < k1; l++) {
+                        double ar = aRe[a + l], ai = aIm[a + l];
+                        double br = bRe[bOff + l], bi = bIm[bOff + l];
+                        sr += ar * br - ai * bi;
+                        si += ar * bi + ai * br;
+                    }
+                    cRe[c] += sr;
+                    cIm[c] += si;
+                    continue;
+                }
+                for (int l = k0; l < k1; l++) {
+                    double ar = aRe[a + l], ai = aIm[a + l];
+                    int bRow = bOff + l * n;
+                    for (int j = 0; j < n; j++) {
+                        double br = bRe[bRow + j], bi = bIm[bRow + j];
+                        cRe[c + j] += ar * br - ai * bi;
+                        cIm[c + j] += ar * bi + ai * br;
+                    }
+                }
+            }
+        }
+    }
+}
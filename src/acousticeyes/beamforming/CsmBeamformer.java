@@ -0,0 +1,189 @@
+package acousticeyes.beamforming;
+
+import acousticeyes.simulation.Simulator;
+
+import java.util.Random;
+
+/* Beamforming engine based on the cross-spectral matrix (CSM), for monitoring a handful of frequency
+ * bins rather than summing over the whole spectrum like PhasedArray.delayAndSumFreqDomain.
+ *
+ * Once per frame, computeCsm builds C[m][n] = X_m * conj(X_n) for each bin of interest from the mic
+ * spectra. The delay-and-sum output power of a pixel for a bin is then the quadratic form a^T C conj(a),
+ * where a_m is mic m's weighted steering phasor for that bin (precomputed from a SteeringTable when the
+ * engine is created). Expanding it this way makes the per-mic autopower terms explicit, so with
+ * removeDiagonal they can be dropped: uncorrelated self-noise of each mic only shows up on the diagonal,
+ * while a real source is correlated across mics.
+ *
+ * Results are in the same units as PhasedArray.sweepBeamFreqDomain (delay-and-sum magnitude divided by
+ * the number of mics, summed over the bins). With the diagonal removed the power of a pixel can come out
+ * negative, which is clamped to 0.
+ *
+ * The CSM can also be averaged over time (computeCsm with a decay factor): each update is folded into a
+ * running exponential average instead of replacing it, which smooths the heatmap like integrating over a
+ * longer window would, but without its latency and at no extra cost per update.
+ */
+public class CsmBeamformer {
+
+    private final SteeringTable table;
+    private final int[] bins; // spectrum bin indices (bin k is at k * SPS / spectrumLength Hz)
+    private final boolean removeDiagonal;
+    private final int mics, pixels;
+    private final double[] steerRe, steerIm; // weighted steering vectors, indexed by (bin * pixels + pixel) * mics + mic
+    private final double[] csmRe, csmIm; // indexed by bin * mics * mics + m * mics + n; only n >= m is filled in
+    private long averaged; // updates in the current average
+    private volatile double pixelRate; // pixels/s achieved by the most recent beamform() call
+
+    public CsmBeamformer(PhasedArray arr, SteeringTable table, int[] bins, boolean removeDiagonal) {
+        this.table = table;
+        this.bins = bins.clone();
+        this.removeDiagonal = removeDiagonal;
+        mics = table.mics;
+        pixels = table.pixels();
+        double[][] steering = table.steeringVectors(arr.subarrays, this.bins);
+        steerRe = steering[0];
+        steerIm = steering[1];
+        csmRe = new double[bins.length * mics * mics];
+        csmIm = new double[bins.length * mics * mics];
+    }
+
+    // bins whose center frequencies are closest to the given ones. throws IllegalArgumentException if one of them
+    // doesn't round to a bin the engines can use: 1 (DC is never steered) to spectrumLength / 2 - 1 (below Nyquist)
+    public static int[] binsFor(double[] frequencies, int spectrumLength) {
+        int[] bins = new int[frequencies.length];
+        for (int i = 0; i < frequencies.length; i++) {
+            double f = frequencies[i];
+            long bin = Math.round(f * spectrumLength / Simulator.SPS);
+            if (Double.isNaN(f) || bin < 1 || bin >= spectrumLength / 2) {
+                throw new IllegalArgumentException("frequency " + f + " Hz is outside the usable spectrum ("
+                        + Simulator.SPS / spectrumLength + " to " + Simulator.SPS * (spectrumLength / 2 - 1) / spectrumLength + " Hz)");
+            }
+            bins[i] = (int) bin;
+        }
+        return bins;
+    }
+
+    // builds this frame's cross-spectral matrices from the mic spectra (interleaved complex, as produced by
+    // StreamingStft.process). must not run concurrently with beamform
+    public void computeCsm(double[][] spectra) {
+        computeCsm(spectra, 0);
+    }
+
+    // Same, but averaged with the previous updates: C <- decay * C + (1 - decay) * X X^H, so with updates dt
+    // apart, decay = exp(-dt / tau) gives time constant tau. 0 replaces the previous matrices outright. While the
+    // average fills up, each update gets weight 1 / (updates so far) instead if that's larger, so early heatmaps
+    // aren't biased towards zero
+    public void computeCsm(double[][] spectra, double decay) {
+        double w = Math.max(1 - decay, 1.0 / ++averaged); // weight of this update
+        double keep = 1 - w;
+        for (int b = 0; b < bins.length; b++) {
+            int k = 2 * bins[b];
+            int base = b * mics * mics;
+            for (int m = 0; m < mics; m++) {
+                double xr = spectra[m][k];
+                double xi = spectra[m][k + 1];
+                for (int n = m; n < mics; n++) {
+                    double yr = spectra[n][k];
+                    double yi = spectra[n][k + 1];
+                    // X_m * conj(X_n)
+                    int c = base + m * mics + n;
+                    csmRe[c] = keep * csmRe[c] + w * (xr * yr + xi * yi);
+                    csmIm[c] = keep * csmIm[c] + w * (xi * yr - xr * yi);
+                }
+            }
+        }
+    }
+
+    // starts the average over with the next update
+    public void resetAverage() {
+        averaged = 0;
+    }
+
+    // evaluates the pixels with phi index phiFrom (inclusive) to phiTo (exclusive) into res[thetaIndex][phiIndex].
+    // different threads can evaluate disjoint phi ranges at the same time
+    public void beamform(int phiFrom, int phiTo, double[][] res) {
+        long start = System.nanoTime();
+        for (int i = 0; i < table.thetaSteps; i++) {
+            for (int j = phiFrom; j < phiTo; j++) {
+                res[i][j] = evaluate(table.pixel(i, j));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        pixelRate = table.thetaSteps * (phiTo - phiFrom) * 1e9 / Math.max(elapsed, 1);
+    }
+
+    public double[][] beamform() {
+        double[][] res = new double[table.thetaSteps][table.phiSteps];
+        beamform(0, table.phiSteps, res);
+        return res;
+    }
+
+    // one pixel of the table, summed over the bins. can be called from several threads at once
+    double evaluate(int pixel) {
+        double total = 0;
+        for (int b = 0; b < bins.length; b++) {
+            total += Math.sqrt(Math.max(power(b, pixel), 0)) / mics;
+        }
+        return total;
+    }
+
+    // a^T C conj(a) for one bin and pixel. C is Hermitian, so each off-diagonal pair contributes 2 Re(a_m conj(a_n) C_mn)
+    private double power(int b, int p) {
+        int sBase = (b * pixels + p) * mics;
+        int cBase = b * mics * mics;
+        double diag = 0;
+        double off = 0;
+        for (int m = 0; m < mics; m++) {
+            double ar = steerRe[sBase + m];
+            double ai = steerIm[sBase + m];
+            if (ar == 0 && ai == 0) continue;
+            int row = cBase + m * mics;
+            diag += (ar * ar + ai * ai) * csmRe[row + m];
+            // acc = sum over n > m of conj(a_n) C_mn
+            double accr = 0, acci = 0;
+            for (int n = m + 1; n < mics; n++) {
+                double br = steerRe[sBase + n];
+                double bi = -steerIm[sBase + n];
+                double cr = csmRe[row + n];
+                double ci = csmIm[row + n];
+                accr += br * cr - bi * ci;
+                acci += br * ci + bi * cr;
+            }
+            off += ar * accr - ai * acci;
+        }
+        return removeDiagonal ? 2 * off : diag + 2 * off;
+    }
+
+    // pixels/s achieved by the most recent beamform call (for a partial sweep, by that call alone)
+    public double getPixelRate() {
+        return pixelRate;
+    }
+
+    // compares pixel rates of this engine and the full-spectrum delay-and-sum sweep on random spectra
+    public static void main(String[] args) {
+        PhasedArray arr = PhasedArray.radial(8, 12, 0.05, 0.3, 1.25, 1, 0);
+        int steps = 64;
+        int spectrumLength = 256;
+        double fov = Math.PI / 2;
+        Random r = new Random(0);
+        double[][] spectra = new double[arr.mics.size()][spectrumLength];
+        for (double[] s : spectra) {
+            for (int i = 0; i < s.length; i++) s[i] = r.nextGaussian();
+        }
+        SteeringTable table = SteeringTable.get(arr, -fov / 2, fov / 2, steps, -fov / 2, fov / 2, steps, spectrumLength);
+        double[][] res = new double[steps][steps];
+        for (int pass = 0; pass < 3; pass++) {
+            long t = System.nanoTime();
+            arr.sweepBeamFreqDomain(spectra, table, 0, steps, res);
+            t = System.nanoTime() - t;
+            System.out.printf("delay-and-sum, all bins: %.0f pixels/s%n", steps * steps * 1e9 / t);
+            for (int nbins : new int[]{1, 4, 16}) {
+                int[] bins = new int[nbins];
+                for (int b = 0; b < nbins; b++) bins[b] = 10 + 6 * b;
+                CsmBeamformer csm = new CsmBeamformer(arr, table, bins, true);
+                csm.computeCsm(spectra);
+                csm.beamform(0, steps, res);
+                System.out.printf("CSM, %d bins: %.0f pixels/s%n", nbins, csm.getPixelRate());
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package acousticeyes.beamforming;
+
+/* Per-pixel frequency-domain delay-and-sum over deinterleaved, bin-major spectra: xRe/xIm[bin * mics + mic].
+ * This layout puts all mics' values for a bin next to each other, so the sum over mics can be done several
+ * mics at a time, with the phasor recurrence (see PhasedArray.delayAndSumFreqDomain) advancing every mic's
+ * phasor in lockstep. Used for the optional SIMD path; PhasedArray's own loop is the scalar fallback.
+ */
+interface DasKernel {
+
+    /* Returns the sum over bins fromBin .. toBin-1 of the beam magnitude divided by mics, for one pixel.
+     *   weights - weights[bin * mics + mic], 0 for excluded bins/mics (see Subarrays.WeightTable)
+     *   phasorRe, phasorIm, base - one-bin phasors of the pixel's mics, starting at index base (see SteeringTable)
+     *   pr, pi - scratch arrays with room for mics values
+     */
+    double pixel(double[] xRe, double[] xIm, double[] weights, int fromBin, int toBin, int mics,
+                 double[] phasorRe, double[] phasorIm, int base, double[] pr, double[] pi);
+
+    // same, but instead of summing the magnitudes, puts each bin's beam power (squared magnitude, not divided by
+    // mics) in power[bin] for bins fromBin .. toBin-1
+    void powers(double[] xRe, double[] xIm, double[] weights, int fromBin, int toBin, int mics,
+                double[] phasorRe, double[] phasorIm, int base, double[] pr, double[] pi, double[] power);
+
+    // the jdk.incubator.vector kernel, or null if that module isn't available
+    // (the JVM has to be started with --add-modules jdk.incubator.vector)
+    static DasKernel vectorKernel() {
+        try {
+            return (DasKernel) Class.forName("acousticeyes.beamforming.VectorDasKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package acousticeyes.beamforming;
+
+import java.util.Arrays;
+
+/* One or more frequency ranges to restrict beamforming to, e.g. to look for a leak with a known 2-4 kHz
+ * signature. Only the spectrum bins whose center frequencies fall inside one of the ranges are processed
+ * (see Subarrays.compile), so the cost of a sweep scales with the total bandwidth.
+ */
+public class FrequencyBands {
+
+    private final double[] lo, hi; // sorted by lo; range i is lo[i] .. hi[i] Hz, inclusive
+
+    // edges - pairs of lower and upper frequencies in Hz: lo0, hi0, lo1, hi1, ...
+    public FrequencyBands(double... edges) {
+        if (edges.length == 0 || edges.length % 2 != 0) {
+            throw new IllegalArgumentException("Bands must be given as pairs of lower and upper frequencies");
+        }
+        int n = edges.length / 2;
+        double[][] ranges = new double[n][];
+        for (int i = 0; i < n; i++) {
+            ranges[i] = new double[] {edges[2 * i], edges[2 * i + 1]};
+            if (ranges[i][1] < ranges[i][0]) throw new IllegalArgumentException("Band " + i + " has upper frequency below lower frequency");
+        }
+        Arrays.sort(ranges, (a, b) -> Double.compare(a[0], b[0]));
+        lo = new double[n];
+        hi = new double[n];
+        for (int i = 0; i < n; i++) {
+            lo[i] = ranges[i][0];
+            hi[i] = ranges[i][1];
+        }
+    }
+
+    public boolean contains(double freq) {
+        for (int i = 0; i < lo.length; i++) {
+            if (freq >= lo[i] && freq <= hi[i]) return true;
+        }
+        return false;
+    }
+
+    // total width in Hz (overlapping ranges are counted twice)
+    public double bandwidth() {
+        double w = 0;
+        for (int i = 0; i < lo.length; i++) {
+            w += hi[i] - lo[i];
+        }
+        return w;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof FrequencyBands b)) return false;
+        return Arrays.equals(lo, b.lo) && Arrays.equals(hi, b.hi);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(lo) + Arrays.hashCode(hi);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lo.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(lo[i]).append("-").append(hi[i]).append(" Hz");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,145 @@
+package acousticeyes.beamforming;
+
+import java.util.Random;
+
+/* Frequency-domain delay-and-sum over a fixed set of bins, evaluated as one batched complex matrix product
+ * per frame (see ComplexGemm). The steering phases depend on frequency, so there is one steering matrix
+ * per bin rather than one for the whole spectrum: for bin b,
+ *     Y_b [pixels x snapshots] = A_b [pixels x mics] x X_b [mics x snapshots]
+ * where A_b holds the weighted steering phasors (precomputed from a SteeringTable) and the columns of X_b
+ * are the mic spectra of each snapshot (e.g. successive DFT windows) at bin b. A pixel's value is the RMS
+ * of its beam output over the snapshots, divided by the number of mics and summed over the bins, which for
+ * a single snapshot is what PhasedArray.sweepBeamFreqDomain computes for those bins.
+ *
+ * The steering matrices take pixels * mics * 16 bytes per bin, so this is meant for a limited set of bins
+ * (the full-spectrum sweep generates its phasors on the fly instead).
+ *
+ * The mean power of each pixel and bin can also be averaged over time (beamform with a decay factor), the
+ * same way CsmBeamformer averages its cross-spectral matrices, which comes to the same heatmap.
+ */
+public class GemmBeamformer {
+
+    private final SteeringTable table;
+    private final int[] bins;
+    private final int mics, pixels;
+    private final double[] steerRe, steerIm; // A_b, indexed by (bin * pixels + pixel) * mics + mic
+    private final ComplexGemm gemm;
+    private double[] xRe = new double[0], xIm = new double[0]; // X_b, indexed by (bin * mics + mic) * snapshots + snapshot
+    private double[] yRe = new double[0], yIm = new double[0]; // Y_b, indexed by (bin * pixels + pixel) * snapshots + snapshot
+    private final double[] average; // time-averaged power, indexed by bin * pixels + pixel
+    private long averaged; // updates in the current average
+
+    public GemmBeamformer(PhasedArray arr, SteeringTable table, int[] bins, ComplexGemm gemm) {
+        this.table = table;
+        this.bins = bins.clone();
+        this.gemm = gemm;
+        mics = table.mics;
+        pixels = table.pixels();
+        double[][] steering = table.steeringVectors(arr.subarrays, this.bins);
+        steerRe = steering[0];
+        steerIm = steering[1];
+        average = new double[this.bins.length * pixels];
+    }
+
+    // single snapshot: spectra[mic] as produced by StreamingStft.process
+    public double[][] beamform(double[][] spectra) {
+        return beamform(new double[][][] {spectra});
+    }
+
+    // snapshots[s][mic] is mic's spectrum for snapshot s. not thread-safe (the work is parallelized internally)
+    public double[][] beamform(double[][][] snapshots) {
+        double[][] res = new double[table.thetaSteps][table.phiSteps];
+        beamform(snapshots, res);
+        return res;
+    }
+
+    // same, into res[thetaIndex][phiIndex]
+    public void beamform(double[][][] snapshots, double[][] res) {
+        beamform(snapshots, snapshots.length, res);
+    }
+
+    // same, for the first ns snapshots
+    public void beamform(double[][][] snapshots, int ns, double[][] res) {
+        beamform(snapshots, ns, 0, res);
+    }
+
+    // Same, but with each pixel and bin's power averaged with the previous calls': P <- decay * P + (1 - decay) * power,
+    // so with calls dt apart, decay = exp(-dt / tau) gives time constant tau. 0 replaces the previous powers outright.
+    // While the average fills up, each call gets weight 1 / (calls so far) instead if that's larger (see CsmBeamformer)
+    public void beamform(double[][][] snapshots, int ns, double decay, double[][] res) {
+        double w = Math.max(1 - decay, 1.0 / ++averaged); // weight of this call
+        double keep = 1 - w;
+        if (xRe.length < bins.length * mics * ns) {
+            xRe = new double[bins.length * mics * ns];
+            xIm = new double[bins.length * mics * ns];
+            yRe = new double[bins.length * pixels * ns];
+            yIm = new double[bins.length * pixels * ns];
+        }
+        for (int b = 0; b < bins.length; b++) {
+            int k = 2 * bins[b];
+            for (int m = 0; m < mics; m++) {
+                for (int s = 0; s < ns; s++) {
+                    xRe[(b * mics + m) * ns + s] = snapshots[s][m][k];
+                    xIm[(b * mics + m) * ns + s] = snapshots[s][m][k + 1];
+                }
+            }
+        }
+        gemm.multiplyBatched(bins.length, pixels, ns, mics,
+                steerRe, steerIm, pixels * mics,
+                xRe, xIm, mics * ns,
+                yRe, yIm, pixels * ns);
+        for (int i = 0; i < table.thetaSteps; i++) {
+            for (int j = 0; j < table.phiSteps; j++) {
+                int p = table.pixel(i, j);
+                double total = 0;
+                for (int b = 0; b < bins.length; b++) {
+                    double power = 0;
+                    for (int s = 0; s < ns; s++) {
+                        int y = (b * pixels + p) * ns + s;
+                        power += yRe[y] * yRe[y] + yIm[y] * yIm[y];
+                    }
+                    int a = b * pixels + p;
+                    average[a] = keep * average[a] + w * (power / ns);
+                    total += Math.sqrt(average[a]) / mics;
+                }
+                res[i][j] = total;
+            }
+        }
+    }
+
+    // starts the average over with the next call
+    public void resetAverage() {
+        averaged = 0;
+    }
+
+    // Usage: GemmBeamformer [steps [bins [snapshots]]]
+    // times whole heatmaps on random spectra, using all available cores
+    public static void main(String[] args) {
+        int steps = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int nbins = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int ns = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        PhasedArray arr = PhasedArray.radial(8, 12, 0.05, 0.3, 1.25, 1, 0);
+        int spectrumLength = 256;
+        double fov = Math.PI / 2;
+        Random r = new Random(0);
+        double[][][] snapshots = new double[ns][arr.mics.size()][spectrumLength];
+        for (double[][] spectra : snapshots) {
+            for (double[] s : spectra) {
+                for (int i = 0; i < s.length; i++) s[i] = r.nextGaussian();
+            }
+        }
+        int[] bins = new int[nbins];
+        for (int b = 0; b < nbins; b++) bins[b] = 10 + 6 * b;
+        SteeringTable table = SteeringTable.get(arr, -fov / 2, fov / 2, steps, -fov / 2, fov / 2, steps, spectrumLength);
+        GemmBeamformer gb = new GemmBeamformer(arr, table, bins, new ComplexGemm(threads));
+        double flops = 8.0 * table.pixels() * arr.mics.size() * nbins * ns;
+        for (int pass = 0; pass < 10; pass++) {
+            long t = System.nanoTime();
+            gb.beamform(snapshots);
+            t = System.nanoTime() - t;
+            System.out.printf("%dx%d pixels, %d bins, %d snapshots, %d threads: %.2f ms/heatmap, %.2f GFLOP/s%n",
+                    steps, steps, nbins, ns, threads, t / 1e6, flops / t);
+        }
+    }
+}
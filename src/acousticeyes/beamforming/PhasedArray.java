@@ -20,10 +20,16 @@ import java.util.List;
 
 /* Represents an array of microphones and implements delay-and-sum beamforming */
 public class PhasedArray {
+    private static final DasKernel VECTOR_KERNEL = DasKernel.vectorKernel(); // null if the Vector API isn't available
+    // the array is too small to resolve much at low frequencies, which are also where most of the background noise is
+    public static final double DEFAULT_MIN_FREQUENCY = 900;
+
     public List<Microphone> mics = new ArrayList<>();
     public Subarrays subarrays;
     private Vec3 center;
     private int n;
+    private volatile boolean useVectorKernel = true;
+    public double minFrequency = DEFAULT_MIN_FREQUENCY; // bins at or below this frequency are left out of frequency domain beamforming
 
     public PhasedArray(List<Vec3> locations, double posNoise) {
         this(locations, posNoise, Subarrays.trivial(0, Simulator.SPS / 2, locations.size()));
@@ -153,31 +159,32 @@ public class PhasedArray {
         int samples = spectra[0].length;
         double[] sum = new double[samples];
         double freqStep = Simulator.SPS / samples;
+        Subarrays.WeightTable wt = subarrays.compile(samples, Simulator.SPS, minFrequency);
         for (int mi = 0; mi < mics.size(); mi++) {
+            if (wt.firstBin[mi] > wt.lastBin[mi]) continue; // not part of any subarray
             double phaseDelayBase = delays[mi] * 2 * Math.PI * freqStep;
             double psr = Math.cos(phaseDelayBase);
             double psi = getSin(phaseDelayBase, psr); //Math.sin(phaseDelayBase);
-            double pr = psr;
-            double pi = psi;
-            for (int i=2; i < samples; i += 2) {
-                double freq = i/2 * freqStep;
-                if (freq > subarrays.maxFrequency()) break;
-
-                double sr = spectra[mi][i];
-                double si = spectra[mi][i+1];
-                double rotr = sr * pr - si * pi;
-                double roti = sr * pi + si * pr;
-                double weight = subarrays.getWeight(mi, freq);
-                if (freq > 900) {
+            // only the mic's nonzero-weight bins; the phasor restarts at the first bin of each run
+            for (int run = wt.micRuns[mi]; run < wt.micRuns[mi + 1]; run++) {
+                double pr = Math.cos(phaseDelayBase * wt.runFirst[run]);
+                double pi = Math.sin(phaseDelayBase * wt.runFirst[run]);
+                for (int k = wt.runFirst[run]; k <= wt.runLast[run]; k++) {
+                    int i = 2 * k;
+                    double sr = spectra[mi][i];
+                    double si = spectra[mi][i+1];
+                    double rotr = sr * pr - si * pi;
+                    double roti = sr * pi + si * pr;
+                    double weight = wt.weights[k * wt.mics + mi];
                     sum[i] += weight * rotr;
                     sum[i + 1] += weight * roti;
-                }
 
-                // increment phasor by phaseDelayBase using angle summation identities
-                // this avoids evaluating trig functions in the inner loop (2x faster)
-                double newpr = pr * psr - pi * psi;
-                pi = pi * psr + pr * psi;
-                pr = newpr;
+                    // increment phasor by phaseDelayBase using angle summation identities
+                    // this avoids evaluating trig functions in the inner loop (2x faster)
+                    double newpr = pr * psr - pi * psi;
+                    pi = pi * psr + pr * psi;
+                    pr = newpr;
+                }
             }
         }
         double[] mag = new double[samples/2];
@@ -187,6 +194,54 @@ public class PhasedArray {
         return mag;
     }
 
+    // Equivalent to Utils.sum(delayAndSumFreqDomain(spectra, delays)) for one pixel of a steering table, but using its
+    // precomputed phasors and the caller's scratch arrays (overwritten), so nothing is computed or allocated per pixel
+    // beyond the sum itself. Only each mic's runs of nonzero-weight bins are visited, and its phasor recurrence
+    // starts straight at the first bin of each run.
+    private double delayAndSumFreqDomain(double[][] spectra, SteeringTable table, Subarrays.WeightTable wt, int pixel,
+                                         double[] sum, double[] startRe, double[] startIm) {
+        beamSums(spectra, table, wt, pixel, sum, startRe, startIm);
+        double total = 0;
+        for (int r = 0; r < wt.rangeFirst.length; r++) {
+            for (int k = wt.rangeFirst[r]; k <= wt.rangeLast[r]; k++) {
+                total += Math.sqrt(sum[2*k] * sum[2*k] + sum[2*k+1] * sum[2*k+1]) / mics.size();
+            }
+        }
+        return total;
+    }
+
+    // the pixel's beam for each active bin, before taking magnitudes, into sum (interleaved complex)
+    private void beamSums(double[][] spectra, SteeringTable table, Subarrays.WeightTable wt, int pixel,
+                          double[] sum, double[] startRe, double[] startIm) {
+        Arrays.fill(sum, 0);
+        int base = pixel * table.mics;
+        for (int mi = 0; mi < mics.size(); mi++) {
+            if (wt.firstBin[mi] > wt.lastBin[mi]) continue;
+            double psr = table.phasorRe[base + mi];
+            double psi = table.phasorIm[base + mi];
+            double[] spectrum = spectra[mi];
+            for (int run = wt.micRuns[mi]; run < wt.micRuns[mi + 1]; run++) {
+                int first = wt.runFirst[run];
+                int last = wt.runLast[run];
+                SteeringTable.phasorPower(psr, psi, first, startRe, startIm, mi);
+                double pr = startRe[mi];
+                double pi = startIm[mi];
+                for (int k = first; k <= last; k++) {
+                    int i = 2 * k;
+                    double sr = spectrum[i];
+                    double si = spectrum[i+1];
+                    double weight = wt.weights[k * wt.mics + mi];
+                    sum[i] += weight * (sr * pr - si * pi);
+                    sum[i + 1] += weight * (sr * pi + si * pr);
+
+                    double newpr = pr * psr - pi * psi;
+                    pi = pi * psr + pr * psi;
+                    pr = newpr;
+                }
+            }
+        }
+    }
+
     // Run DAS beamforming on a grid of points. Returns a 2D array with the RMS amplitude of the
     // delayed-and-summed waveforms at each beam direction.
     public double[][] sweepBeam(double thetaStart, double thetaEnd, int thetaSteps, double phiStart, double phiEnd, int phiSteps, double startTime, int samples) {
@@ -202,15 +257,187 @@ public class PhasedArray {
     }
 
     public double[][] sweepBeamFreqDomain(double[][] spectra, double thetaStart, double thetaEnd, int thetaSteps, double phiStart, double phiEnd, int phiSteps) {
+        return sweepBeamFreqDomain(spectra, null, thetaStart, thetaEnd, thetaSteps, phiStart, phiEnd, phiSteps);
+    }
+
+    // bands - if not null, only bins inside these frequency ranges are beamformed
+    public double[][] sweepBeamFreqDomain(double[][] spectra, FrequencyBands bands, double thetaStart, double thetaEnd, int thetaSteps, double phiStart, double phiEnd, int phiSteps) {
+        SteeringTable table = SteeringTable.get(this, thetaStart, thetaEnd, thetaSteps, phiStart, phiEnd, phiSteps, spectra[0].length);
         double[][] res = new double[thetaSteps][phiSteps];
-        for (int i=0; i < thetaSteps; i++) {
-            double theta = thetaStart + ((thetaEnd - thetaStart)*i)/(thetaSteps-1);
-            for (int j=0; j < phiSteps; j++) {
-                double phi = phiStart + ((phiEnd - phiStart)*j)/(phiSteps-1);
-                res[i][j] = Utils.sum(delayAndSumFreqDomain(spectra, farFieldBeamformingDelays(theta, phi)));
+        sweepBeamFreqDomain(spectra, bands, table, 0, phiSteps, res);
+        return res;
+    }
+
+    // same as above, but over a precomputed grid, and only for phi indices phiFrom (inclusive) to phiTo (exclusive),
+    // so that the grid can be split between threads. results go in res[thetaIndex][phiIndex]
+    public void sweepBeamFreqDomain(double[][] spectra, SteeringTable table, int phiFrom, int phiTo, double[][] res) {
+        sweepBeamFreqDomain(spectra, null, table, phiFrom, phiTo, res);
+    }
+
+    public void sweepBeamFreqDomain(double[][] spectra, FrequencyBands bands, SteeringTable table, int phiFrom, int phiTo, double[][] res) {
+        PixelEvaluator evaluator = new PixelEvaluator(spectra, bands, table);
+        for (int i=0; i < table.thetaSteps; i++) {
+            for (int j=phiFrom; j < phiTo; j++) {
+                res[i][j] = evaluator.evaluate(table.pixel(i, j));
             }
         }
-        return res;
+    }
+
+    // Adaptive version of the above over the whole grid: only the pixels that adaptive picks are evaluated, the rest
+    // are interpolated (see AdaptiveSweep). returns the number of pixels evaluated
+    public int sweepBeamFreqDomain(double[][] spectra, FrequencyBands bands, SteeringTable table, AdaptiveSweep adaptive, double[][] res) {
+        return adaptive.sweep(this, spectra, bands, table, res, null, 1);
+    }
+
+    // the SIMD kernel path is taken by sweepBeamFreqDomain when the jdk.incubator.vector module is available
+    public static boolean isVectorKernelAvailable() {
+        return VECTOR_KERNEL != null;
+    }
+
+    // turns the SIMD kernel on or off (it's on by default when available)
+    public void setUseVectorKernel(boolean use) {
+        useVectorKernel = use;
+    }
+
+    // Evaluates single pixels of a steering table for one frame's spectra, using the SIMD kernel if it's enabled
+    // (with the spectra deinterleaved into bin-major order for it), or the scalar path otherwise. Given several
+    // windows' spectra, a pixel's value is the mean of its delay-and-sum output over them: each window is beamformed
+    // on its own, so windows add up incoherently, whatever the phase of a component from one window to the next.
+    // Holds scratch arrays, so each thread needs its own (see copy()).
+    class PixelEvaluator {
+        private final double[][][] windows; // windows[w][mic], for the first count windows
+        private final int count;
+        private final SteeringTable table;
+        private final Subarrays.WeightTable wt;
+        private final DasKernel kernel;
+        private final double[][] xRe, xIm; // per window, kernel only
+        private final double[] sum; // scalar path only
+        private final double[] startRe, startIm;
+        private final double[] power; // per bin, for evaluateAveraged
+
+        PixelEvaluator(double[][] spectra, FrequencyBands bands, SteeringTable table) {
+            this(new double[][][] {spectra}, 1, bands, table);
+        }
+
+        PixelEvaluator(double[][][] windows, int count, FrequencyBands bands, SteeringTable table) {
+            if (count < 1) throw new IllegalArgumentException("no windows to evaluate");
+            int length = windows[0][0].length;
+            if (length != table.spectrumLength || table.mics != mics.size()) {
+                throw new IllegalArgumentException("steering table doesn't match spectra");
+            }
+            this.windows = windows;
+            this.count = count;
+            this.table = table;
+            wt = subarrays.compile(length, Simulator.SPS, minFrequency, bands);
+            kernel = useVectorKernel ? VECTOR_KERNEL : null;
+            int nm = mics.size();
+            startRe = new double[nm];
+            startIm = new double[nm];
+            power = new double[wt.bins];
+            if (kernel != null) {
+                sum = null;
+                xRe = new double[count][wt.bins * nm];
+                xIm = new double[count][wt.bins * nm];
+                for (int w = 0; w < count; w++) {
+                    double[][] spectra = windows[w];
+                    for (int r = 0; r < wt.rangeFirst.length; r++) {
+                        for (int k = wt.rangeFirst[r]; k <= wt.rangeLast[r]; k++) {
+                            for (int mi = 0; mi < nm; mi++) {
+                                xRe[w][k * nm + mi] = spectra[mi][2 * k];
+                                xIm[w][k * nm + mi] = spectra[mi][2 * k + 1];
+                            }
+                        }
+                    }
+                }
+            } else {
+                xRe = xIm = null;
+                sum = new double[length];
+            }
+        }
+
+        // shares the frame's read-only data with shared, with its own scratch arrays
+        private PixelEvaluator(PixelEvaluator shared) {
+            windows = shared.windows;
+            count = shared.count;
+            table = shared.table;
+            wt = shared.wt;
+            kernel = shared.kernel;
+            xRe = shared.xRe;
+            xIm = shared.xIm;
+            sum = shared.sum == null ? null : new double[shared.sum.length];
+            startRe = new double[shared.startRe.length];
+            startIm = new double[shared.startIm.length];
+            power = new double[shared.power.length];
+        }
+
+        // an evaluator for another thread, without redoing the per-frame setup
+        PixelEvaluator copy() {
+            return new PixelEvaluator(this);
+        }
+
+        double evaluate(int pixel) {
+            double total = 0;
+            for (int w = 0; w < count; w++) {
+                total += evaluate(w, pixel);
+            }
+            return count == 1 ? total : total / count;
+        }
+
+        // the bins evaluate and evaluateAveraged cover
+        Subarrays.WeightTable weightTable() {
+            return wt;
+        }
+
+        /* Per-bin exponential average of the delay-and-sum output: folds window w's beam power for each bin into
+         * average[pixel * wt.bins + bin] as average <- (1 - weights[w]) * average + weights[w] * power, one window
+         * after the other, then returns the pixel's value from the averaged powers (the sum over bins of the rms
+         * magnitude divided by mics, like evaluate). Different threads can do different pixels at once.
+         */
+        double evaluateAveraged(int pixel, double[] average, double[] weights) {
+            int nm = table.mics;
+            int base = pixel * wt.bins;
+            for (int w = 0; w < count; w++) {
+                if (kernel == null) {
+                    beamSums(windows[w], table, wt, pixel, sum, startRe, startIm);
+                    for (int r = 0; r < wt.rangeFirst.length; r++) {
+                        for (int k = wt.rangeFirst[r]; k <= wt.rangeLast[r]; k++) {
+                            power[k] = sum[2 * k] * sum[2 * k] + sum[2 * k + 1] * sum[2 * k + 1];
+                        }
+                    }
+                } else {
+                    for (int r = 0; r < wt.rangeFirst.length; r++) {
+                        kernel.powers(xRe[w], xIm[w], wt.weights, wt.rangeFirst[r], wt.rangeLast[r] + 1, nm,
+                                table.phasorRe, table.phasorIm, pixel * nm, startRe, startIm, power);
+                    }
+                }
+                double keep = 1 - weights[w];
+                for (int r = 0; r < wt.rangeFirst.length; r++) {
+                    for (int k = wt.rangeFirst[r]; k <= wt.rangeLast[r]; k++) {
+                        average[base + k] = keep * average[base + k] + weights[w] * power[k];
+                    }
+                }
+            }
+            double total = 0;
+            for (int r = 0; r < wt.rangeFirst.length; r++) {
+                for (int k = wt.rangeFirst[r]; k <= wt.rangeLast[r]; k++) {
+                    total += Math.sqrt(average[base + k]);
+                }
+            }
+            return total / nm;
+        }
+
+        private double evaluate(int w, int pixel) {
+            if (kernel == null) {
+                return delayAndSumFreqDomain(windows[w], table, wt, pixel, sum, startRe, startIm);
+            }
+            int nm = table.mics;
+            double total = 0;
+            for (int r = 0; r < wt.rangeFirst.length; r++) {
+                total += kernel.pixel(xRe[w], xIm[w], wt.weights, wt.rangeFirst[r], wt.rangeLast[r] + 1, nm,
+                        table.phasorRe, table.phasorIm, pixel * nm, startRe, startIm);
+            }
+            return total;
+        }
     }
 
     @Override
@@ -0,0 +1,56 @@
+package acousticeyes.beamforming;
+
+import acousticeyes.util.Histogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Load figures for one stage of BeamformingManager's frame pipeline. Queue depth counts items waiting for
+ * the stage (not the one it's working on). Latency runs from an item being queued for the stage to the
+ * stage finishing with it, so it includes waiting behind earlier items; service time is the work alone.
+ * Both histograms are in microseconds.
+ */
+public class PipelineStage {
+
+    private final String name;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Histogram latency;
+    private final Histogram serviceTime;
+
+    PipelineStage(String name) {
+        this.name = name;
+        latency = new Histogram(name + " latency (us)", 1000, 128);
+        serviceTime = new Histogram(name + " service time (us)", 1000, 128);
+    }
+
+    void enqueued() {
+        queued.incrementAndGet();
+    }
+
+    void started() {
+        queued.decrementAndGet();
+    }
+
+    // queuedNanos and startNanos are System.nanoTime() values from when the item was queued and started
+    void finished(long queuedNanos, long startNanos) {
+        long now = System.nanoTime();
+        latency.record((now - queuedNanos) / 1000);
+        serviceTime.record((now - startNanos) / 1000);
+    }
+
+    public int getQueueDepth() {
+        return Math.max(queued.get(), 0); // an item can be started just before it's counted as queued
+    }
+
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public Histogram getServiceTime() {
+        return serviceTime;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": queued " + getQueueDepth() + "\n  " + latency + "\n  " + serviceTime;
+    }
+}
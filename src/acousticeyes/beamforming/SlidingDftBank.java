@@ -0,0 +1,174 @@
+package acousticeyes.beamforming;
+
+import java.util.Arrays;
+
+/* Sliding DFT of every mic's sample stream at a few chosen bins, for watching a handful of frequencies
+ * at a much higher rate than whole-frame spectra. Instead of transforming a window, each bin is updated
+ * as every sample comes in: with the window covering the last windowSize samples,
+ *     X_k <- (X_k - x_oldest + x_new) * e^(2 pi i k / windowSize)
+ * which keeps X_k equal to the DFT of the window (phase referenced to its first sample, like an FFT of
+ * it would be), at a cost per sample proportional to the number of bins rather than the window size.
+ *
+ * The windowed spectrum is a Hann window applied in the frequency domain, as 0.5 X_k - 0.25 (X_k-1 + X_k+1),
+ * so each bin also tracks its two neighbours (shared between adjacent bins). Rounding errors in the
+ * recurrence never decay, so every RESYNC_WINDOWS windows the tracked bins are recomputed directly from
+ * the sample history.
+ *
+ * Mics are fed one packet at a time: push each mic's samples, then endPacket. Not thread-safe; see
+ * BeamformingManager.trackBins for how the ingest path feeds it.
+ */
+public class SlidingDftBank {
+
+    private static final int RESYNC_WINDOWS = 64;
+
+    public final int windowSize;
+    public final int packetsPerUpdate; // endPacket reports an update every this many packets
+    private final int mics;
+    private final int[] bins;
+    private final int[] raw; // bins whose unwindowed DFT is tracked: each of bins and its neighbours, ascending
+    private final int[] centre; // per bin, its index in raw (its neighbours are at centre - 1 and centre + 1)
+    private final double[] rotRe, rotIm; // e^(2 pi i k / windowSize) per raw bin
+    private final double[] cos, sin; // e^(-2 pi i j / windowSize), for resync
+    private final double[] xRe, xIm; // unwindowed DFT, indexed by mic * raw.length + raw index
+    private final double[] history; // the last windowSize samples of each mic: sample t of mic m is at m * windowSize + (t & mask)
+    private final int mask;
+    private long written; // samples per mic since the last reset
+    private long sinceResync;
+    private int packets; // since the last update
+
+    public SlidingDftBank(int mics, int windowSize, int[] bins, int packetsPerUpdate) {
+        if (windowSize < 4 || (windowSize & (windowSize - 1)) != 0) throw new IllegalArgumentException("window size must be a power of 2");
+        if (packetsPerUpdate < 1) throw new IllegalArgumentException("packetsPerUpdate must be at least 1");
+        this.mics = mics;
+        this.windowSize = windowSize;
+        this.packetsPerUpdate = packetsPerUpdate;
+        this.bins = bins.clone();
+        boolean[] used = new boolean[windowSize / 2];
+        for (int k : bins) {
+            if (k < 1 || k + 1 >= windowSize / 2) throw new IllegalArgumentException("bin " + k + " out of range");
+            used[k - 1] = used[k] = used[k + 1] = true;
+        }
+        int[] index = new int[windowSize / 2];
+        int n = 0;
+        for (int k = 0; k < used.length; k++) {
+            if (used[k]) {
+                index[k] = n++;
+            }
+        }
+        raw = new int[n];
+        rotRe = new double[n];
+        rotIm = new double[n];
+        for (int k = 0; k < used.length; k++) {
+            if (used[k]) {
+                raw[index[k]] = k;
+                rotRe[index[k]] = Math.cos(2 * Math.PI * k / windowSize);
+                rotIm[index[k]] = Math.sin(2 * Math.PI * k / windowSize);
+            }
+        }
+        centre = new int[bins.length];
+        for (int b = 0; b < bins.length; b++) {
+            centre[b] = index[bins[b]];
+        }
+        cos = new double[windowSize];
+        sin = new double[windowSize];
+        for (int j = 0; j < windowSize; j++) {
+            cos[j] = Math.cos(2 * Math.PI * j / windowSize);
+            sin[j] = -Math.sin(2 * Math.PI * j / windowSize);
+        }
+        xRe = new double[mics * n];
+        xIm = new double[mics * n];
+        history = new double[mics * windowSize];
+        mask = windowSize - 1;
+    }
+
+    // the tracked bins (bin k is at k * SPS / windowSize Hz)
+    public int[] bins() {
+        return bins.clone();
+    }
+
+    // forgets the stream so far, e.g. when packets were lost and the next samples don't follow on
+    public void reset() {
+        Arrays.fill(xRe, 0);
+        Arrays.fill(xIm, 0);
+        Arrays.fill(history, 0);
+        written = 0;
+        sinceResync = 0;
+        packets = 0;
+    }
+
+    // whether a whole window has been seen since the last reset, so the bins are of real samples only
+    public boolean isPrimed() {
+        return written >= windowSize;
+    }
+
+    // appends pcm[offset] .. pcm[offset + length - 1] (times scale) to mic's stream
+    public void push(int mic, short[] pcm, int offset, int length, double scale) {
+        for (int i = 0; i < length; i++) {
+            slide(mic, written + i, pcm[offset + i] * scale);
+        }
+    }
+
+    // same as above, for samples that are already floating point
+    public void push(int mic, double[] samples, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            slide(mic, written + i, samples[offset + i]);
+        }
+    }
+
+    // call once every mic has been pushed the packet's samples. returns whether it's time for an update
+    // (every packetsPerUpdate packets, once primed)
+    public boolean endPacket(int samples) {
+        written += samples;
+        sinceResync += samples;
+        if (sinceResync >= (long) RESYNC_WINDOWS * windowSize) {
+            resync();
+            sinceResync = 0;
+        }
+        if (++packets < packetsPerUpdate) return false;
+        packets = 0;
+        return isPrimed();
+    }
+
+    // Writes the Hann-windowed tracked bins of every mic into spectra[mic] (interleaved complex, windowSize
+    // long, as from StreamingStft.process, with the same phase reference). Other bins are left alone
+    public void snapshot(double[][] spectra) {
+        int n = raw.length;
+        for (int m = 0; m < mics; m++) {
+            double[] s = spectra[m];
+            for (int b = 0; b < bins.length; b++) {
+                int c = m * n + centre[b];
+                s[2 * bins[b]] = 0.5 * xRe[c] - 0.25 * (xRe[c - 1] + xRe[c + 1]);
+                s[2 * bins[b] + 1] = 0.5 * xIm[c] - 0.25 * (xIm[c - 1] + xIm[c + 1]);
+            }
+        }
+    }
+
+    // sample t of mic's stream comes in, sample t - windowSize drops out of the window
+    private void slide(int mic, long t, double sample) {
+        int h = mic * windowSize + (int) (t & mask);
+        double d = sample - history[h];
+        history[h] = sample;
+        for (int r = 0, x = mic * raw.length; r < raw.length; r++, x++) {
+            double re = xRe[x] + d, im = xIm[x];
+            xRe[x] = re * rotRe[r] - im * rotIm[r];
+            xIm[x] = re * rotIm[r] + im * rotRe[r];
+        }
+    }
+
+    // recomputes every tracked bin as a plain DFT of the history
+    private void resync() {
+        for (int m = 0; m < mics; m++) {
+            for (int r = 0; r < raw.length; r++) {
+                double re = 0, im = 0;
+                for (int j = 0; j < windowSize; j++) {
+                    double v = history[m * windowSize + (int) ((written + j) & mask)]; // oldest sample first
+                    int a = (raw[r] * j) & mask;
+                    re += v * cos[a];
+                    im += v * sin[a];
+                }
+                xRe[m * raw.length + r] = re;
+                xIm[m * raw.length + r] = im;
+            }
+        }
+    }
+}
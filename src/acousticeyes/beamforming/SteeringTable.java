@@ -0,0 +1,175 @@
+package acousticeyes.beamforming;
+
+import acousticeyes.simulation.Simulator;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Precomputed steering data for sweeping a beam over a fixed (theta, phi) grid with a fixed array.
+ * For every pixel and microphone it holds the far-field delay, and the phasor that rotates a spectrum
+ * by that delay for one frequency bin step (the per-bin phasors follow by repeated multiplication, see
+ * PhasedArray.delayAndSumFreqDomain). None of this changes from frame to frame, so building it once
+ * takes all of the trig and allocation out of the per-frame pixel loop.
+ *
+ * Data is stored in flat arrays indexed by pixel * mics + mic, where pixel = thetaIndex * phiSteps + phiIndex.
+ * Tables are cached by geometry, grid and spectrum length; use get() rather than building them directly.
+ */
+public class SteeringTable {
+
+    private static final int CACHE_SIZE = 8;
+    private static final Map<Key, SteeringTable> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, SteeringTable> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public final double thetaStart, thetaEnd, phiStart, phiEnd;
+    public final int thetaSteps, phiSteps;
+    public final int mics;
+    public final int spectrumLength; // length of the (interleaved complex) spectra the phasors are for
+    final double[] delays; // seconds, normalized so that the smallest delay for each pixel is 0
+    final double[] phasorRe, phasorIm; // e^(i * 2pi * delay * freqStep)
+
+    private SteeringTable(PhasedArray arr, double thetaStart, double thetaEnd, int thetaSteps, double phiStart, double phiEnd, int phiSteps, int spectrumLength) {
+        this.thetaStart = thetaStart;
+        this.thetaEnd = thetaEnd;
+        this.thetaSteps = thetaSteps;
+        this.phiStart = phiStart;
+        this.phiEnd = phiEnd;
+        this.phiSteps = phiSteps;
+        this.mics = arr.mics.size();
+        this.spectrumLength = spectrumLength;
+        int n = thetaSteps * phiSteps * mics;
+        delays = new double[n];
+        phasorRe = new double[n];
+        phasorIm = new double[n];
+        double freqStep = Simulator.SPS / spectrumLength;
+        for (int i = 0; i < thetaSteps; i++) {
+            for (int j = 0; j < phiSteps; j++) {
+                double[] d = arr.farFieldBeamformingDelays(theta(i), phi(j));
+                int base = pixel(i, j) * mics;
+                for (int m = 0; m < mics; m++) {
+                    double phase = d[m] * 2 * Math.PI * freqStep;
+                    delays[base + m] = d[m];
+                    phasorRe[base + m] = Math.cos(phase);
+                    phasorIm[base + m] = Math.sin(phase);
+                }
+            }
+        }
+    }
+
+    // returns the table for this array and grid, building it if it isn't cached already
+    public static SteeringTable get(PhasedArray arr, double thetaStart, double thetaEnd, int thetaSteps,
+                                    double phiStart, double phiEnd, int phiSteps, int spectrumLength) {
+        Key key = new Key(arr, thetaStart, thetaEnd, thetaSteps, phiStart, phiEnd, phiSteps, spectrumLength);
+        synchronized (cache) {
+            SteeringTable t = cache.get(key);
+            if (t == null) {
+                t = new SteeringTable(arr, thetaStart, thetaEnd, thetaSteps, phiStart, phiEnd, phiSteps, spectrumLength);
+                cache.put(key, t);
+            }
+            return t;
+        }
+    }
+
+    // same grid spacing as PhasedArray.sweepBeam: both ends inclusive
+    public double theta(int i) {
+        return thetaStart + ((thetaEnd - thetaStart) * i) / (thetaSteps - 1);
+    }
+
+    public double phi(int j) {
+        return phiStart + ((phiEnd - phiStart) * j) / (phiSteps - 1);
+    }
+
+    public int pixel(int thetaIndex, int phiIndex) {
+        return thetaIndex * phiSteps + phiIndex;
+    }
+
+    public int pixels() {
+        return thetaSteps * phiSteps;
+    }
+
+    public double delay(int pixel, int mic) {
+        return delays[pixel * mics + mic];
+    }
+
+    // Full steering vectors for a few specific bins, weighted by subarrays: {re, im}, each indexed by
+    // (binIndex * pixels + pixel) * mics + mic, i.e. one pixels x mics matrix per bin. Element (p, m) is the
+    // factor mic m's spectrum is multiplied by when steering pixel p, as in PhasedArray.delayAndSumFreqDomain.
+    public double[][] steeringVectors(Subarrays subarrays, int[] bins) {
+        int pixels = pixels();
+        double[] re = new double[bins.length * pixels * mics];
+        double[] im = new double[bins.length * pixels * mics];
+        double freqStep = Simulator.SPS / spectrumLength;
+        for (int b = 0; b < bins.length; b++) {
+            if (bins[b] < 1 || 2 * bins[b] + 1 >= spectrumLength) {
+                throw new IllegalArgumentException("bin " + bins[b] + " out of range");
+            }
+            double freq = bins[b] * freqStep;
+            for (int p = 0; p < pixels; p++) {
+                int base = (b * pixels + p) * mics;
+                for (int m = 0; m < mics; m++) {
+                    double phase = delays[p * mics + m] * 2 * Math.PI * freq;
+                    double w = subarrays.getWeight(m, freq);
+                    re[base + m] = w * Math.cos(phase);
+                    im[base + m] = w * Math.sin(phase);
+                }
+            }
+        }
+        return new double[][] {re, im};
+    }
+
+    // sets out[idx] = (re + i im)^k, by repeated squaring, so that a phasor recurrence can start at bin k
+    // without evaluating any trig functions
+    static void phasorPower(double re, double im, int k, double[] outRe, double[] outIm, int idx) {
+        double rr = 1, ri = 0;
+        while (k > 0) {
+            if ((k & 1) != 0) {
+                double t = rr * re - ri * im;
+                ri = rr * im + ri * re;
+                rr = t;
+            }
+            double t = re * re - im * im;
+            im = 2 * re * im;
+            re = t;
+            k >>= 1;
+        }
+        outRe[idx] = rr;
+        outIm[idx] = ri;
+    }
+
+    private static class Key {
+        private final double[] geometry; // microphone positions
+        private final double[] grid;
+        private final int thetaSteps, phiSteps, spectrumLength;
+        private final int hash;
+
+        Key(PhasedArray arr, double thetaStart, double thetaEnd, int thetaSteps, double phiStart, double phiEnd, int phiSteps, int spectrumLength) {
+            geometry = new double[arr.mics.size() * 3];
+            for (int m = 0; m < arr.mics.size(); m++) {
+                geometry[3 * m] = arr.mics.get(m).pos.x;
+                geometry[3 * m + 1] = arr.mics.get(m).pos.y;
+                geometry[3 * m + 2] = arr.mics.get(m).pos.z;
+            }
+            grid = new double[] {thetaStart, thetaEnd, phiStart, phiEnd};
+            this.thetaSteps = thetaSteps;
+            this.phiSteps = phiSteps;
+            this.spectrumLength = spectrumLength;
+            hash = 31 * (31 * (31 * (31 * Arrays.hashCode(geometry) + Arrays.hashCode(grid)) + thetaSteps) + phiSteps) + spectrumLength;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key k)) return false;
+            return hash == k.hash && thetaSteps == k.thetaSteps && phiSteps == k.phiSteps && spectrumLength == k.spectrumLength
+                    && Arrays.equals(grid, k.grid) && Arrays.equals(geometry, k.geometry);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package acousticeyes.beamforming;
+
+import acousticeyes.util.FftPlan;
+
+/* Short-time Fourier transform of one mic's sample stream, fed a frame at a time. Samples go into a ring
+ * buffer one window long, so windows can straddle frame boundaries: a new window starts every hop samples
+ * of the stream, and each one is transformed exactly once, as soon as its last sample arrives. With
+ * hop <= window length, every captured sample ends up in some window.
+ *
+ * Each window completed during a frame is reported as a spectrum of its own. They must not be averaged
+ * as complex values: a component off a bin centre rotates in phase from one window to the next, so a
+ * coherent mean partly cancels it. Consumers beamform each window and average the outputs (or their
+ * powers or cross-spectra) instead; see BeamformingManager.
+ *
+ * Not thread-safe; one instance per mic.
+ */
+public class StreamingStft {
+
+    public final int hop;
+    private final double[] window;
+    private final FftPlan plan;
+    private final double[] ring; // the last window.length samples; sample t of the stream is at t & mask
+    private final int mask;
+    private long written; // samples appended since the last reset
+    private long nextStart; // stream position of the next window's first sample
+    private final double[] in, re, im; // fft scratch
+    private int windows; // windows completed by the current process call
+
+    public StreamingStft(double[] window, int hop) {
+        if (hop < 1 || hop > window.length) throw new IllegalArgumentException("hop must be between 1 and the window length");
+        this.hop = hop;
+        this.window = window;
+        plan = FftPlan.forSize(window.length);
+        ring = new double[window.length];
+        mask = window.length - 1;
+        in = new double[window.length];
+        re = new double[window.length / 2];
+        im = new double[window.length / 2];
+    }
+
+    // forgets the stream so far, e.g. when frames were dropped and the next samples don't follow on
+    public void reset() {
+        written = 0;
+        nextStart = 0;
+    }
+
+    // the most windows that length samples can complete, i.e. how many spectra process needs room for
+    public int maxWindows(int length) {
+        return (length + hop - 1) / hop;
+    }
+
+    // Appends pcm[offset] .. pcm[offset + length - 1] (times scale) to the stream, and puts the spectra of the
+    // windows completed by them in spectra[0], spectra[1], ... in order (bins 0 .. window.length / 2 - 1, interleaved
+    // complex, so window.length long). spectra must have room for maxWindows(length). returns the number of windows
+    public int process(short[] pcm, int offset, int length, double scale, double[][] spectra) {
+        start(length, spectra);
+        for (int i = 0; i < length; i++) {
+            if (push(pcm[offset + i] * scale)) {
+                addWindow(spectra[windows]);
+            }
+        }
+        return windows;
+    }
+
+    // same as above, for samples that are already floating point
+    public int process(double[] samples, int offset, int length, double[][] spectra) {
+        start(length, spectra);
+        for (int i = 0; i < length; i++) {
+            if (push(samples[offset + i])) {
+                addWindow(spectra[windows]);
+            }
+        }
+        return windows;
+    }
+
+    private void start(int length, double[][] spectra) {
+        if (spectra.length < maxWindows(length)) throw new IllegalArgumentException("not enough room for the windows");
+        windows = 0;
+    }
+
+    // returns whether the sample completed a window
+    private boolean push(double sample) {
+        ring[(int) (written & mask)] = sample;
+        written++;
+        return written == nextStart + window.length;
+    }
+
+    // transforms the window starting at nextStart, which is complete in the ring, into spectrum
+    private void addWindow(double[] spectrum) {
+        int n = window.length;
+        if (spectrum.length != n) throw new IllegalArgumentException("spectrum must be as long as the window");
+        for (int i = 0; i < n; i++) {
+            in[i] = ring[(int) ((nextStart + i) & mask)] * window[i];
+        }
+        plan.transformReal(in, re, im);
+        for (int k = 0; k < n / 2; k++) {
+            spectrum[2 * k] = re[k];
+            spectrum[2 * k + 1] = im[k];
+        }
+        windows++;
+        nextStart += hop;
+    }
+}
@@ -1,12 +1,16 @@
 package acousticeyes.beamforming;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
 
 /* Represents a scheme for using different parts of a phased array for differet frequency bands. */
 public class Subarrays {
 
     private double[] frequencyBands; // band i goes from frequencyBands[i] to frequencyBands[i+1]
     private double[][] weights; // indexed by band and then by microphone number
+    private volatile WeightTable compiled; // most recently compiled table, reused while the parameters match
 
     public Subarrays(double[] bands, double[][] w) {
         frequencyBands = bands;
@@ -27,6 +31,113 @@ public class Subarrays {
         return frequencyBands[frequencyBands.length-1];
     }
 
+    /* The weights evaluated at the center frequency of every bin of a spectrum, so that beamforming can look
+     * them up by bin instead of searching the bands for every mic, bin and pixel. Bins at or below minFrequency
+     * get weight 0, as do bin 0 (DC), bins above maxFrequency(), and, if analysisBands isn't null, bins outside it.
+     *   spectrumLength - length of the interleaved complex spectra (= DFT window size); bin k is at k * sampleRate / spectrumLength
+     */
+    public WeightTable compile(int spectrumLength, double sampleRate, double minFrequency, FrequencyBands analysisBands) {
+        WeightTable t = compiled;
+        if (t == null || t.spectrumLength != spectrumLength || t.sampleRate != sampleRate || t.minFrequency != minFrequency
+                || !Objects.equals(t.analysisBands, analysisBands)) {
+            t = new WeightTable(this, spectrumLength, sampleRate, minFrequency, analysisBands);
+            compiled = t;
+        }
+        return t;
+    }
+
+    public WeightTable compile(int spectrumLength, double sampleRate, double minFrequency) {
+        return compile(spectrumLength, sampleRate, minFrequency, null);
+    }
+
+    public static class WeightTable {
+        public final int bins, mics; // bins = spectrumLength / 2
+        public final double[] weights; // indexed by bin * mics + mic
+        public final int[] firstBin, lastBin; // active (nonzero weight) bin range of each mic, inclusive; empty if firstBin > lastBin
+        public final int minBin, maxBin; // active bin range over all mics; empty if minBin > maxBin
+        // maximal runs of bins in which at least one mic is active, in increasing order; range r is rangeFirst[r] .. rangeLast[r]
+        public final int[] rangeFirst, rangeLast;
+        // maximal runs of nonzero-weight bins of each mic: mic m's runs are micRuns[m] .. micRuns[m + 1] - 1, and
+        // run i is bins runFirst[i] .. runLast[i]. a mic's active range can have zero-weight gaps between its runs
+        public final int[] micRuns, runFirst, runLast;
+        private final int spectrumLength;
+        private final double sampleRate, minFrequency;
+        private final FrequencyBands analysisBands;
+
+        private WeightTable(Subarrays s, int spectrumLength, double sampleRate, double minFrequency, FrequencyBands analysisBands) {
+            this.spectrumLength = spectrumLength;
+            this.sampleRate = sampleRate;
+            this.minFrequency = minFrequency;
+            this.analysisBands = analysisBands;
+            bins = spectrumLength / 2;
+            mics = s.weights[0].length;
+            weights = new double[bins * mics];
+            firstBin = new int[mics];
+            lastBin = new int[mics];
+            Arrays.fill(firstBin, bins);
+            Arrays.fill(lastBin, -1);
+            int lo = bins, hi = -1;
+            List<int[]> ranges = new ArrayList<>();
+            for (int k = 1; k < bins; k++) {
+                double freq = k * sampleRate / spectrumLength;
+                if (freq <= minFrequency || freq > s.maxFrequency()) continue;
+                if (analysisBands != null && !analysisBands.contains(freq)) continue;
+                boolean active = false;
+                for (int m = 0; m < mics; m++) {
+                    double w = s.getWeight(m, freq);
+                    weights[k * mics + m] = w;
+                    if (w != 0) {
+                        firstBin[m] = Math.min(firstBin[m], k);
+                        lastBin[m] = k;
+                        active = true;
+                    }
+                }
+                if (active) {
+                    lo = Math.min(lo, k);
+                    hi = k;
+                    int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                    if (last != null && last[1] == k - 1) {
+                        last[1] = k;
+                    } else {
+                        ranges.add(new int[] {k, k});
+                    }
+                }
+            }
+            minBin = lo;
+            maxBin = hi;
+            rangeFirst = new int[ranges.size()];
+            rangeLast = new int[ranges.size()];
+            for (int r = 0; r < ranges.size(); r++) {
+                rangeFirst[r] = ranges.get(r)[0];
+                rangeLast[r] = ranges.get(r)[1];
+            }
+            micRuns = new int[mics + 1];
+            List<int[]> runs = new ArrayList<>();
+            for (int m = 0; m < mics; m++) {
+                micRuns[m] = runs.size();
+                for (int k = firstBin[m]; k <= lastBin[m]; k++) {
+                    if (weights[k * mics + m] == 0) continue;
+                    int first = k;
+                    while (k + 1 <= lastBin[m] && weights[(k + 1) * mics + m] != 0) {
+                        k++;
+                    }
+                    runs.add(new int[] {first, k});
+                }
+            }
+            micRuns[mics] = runs.size();
+            runFirst = new int[runs.size()];
+            runLast = new int[runs.size()];
+            for (int i = 0; i < runs.size(); i++) {
+                runFirst[i] = runs.get(i)[0];
+                runLast[i] = runs.get(i)[1];
+            }
+        }
+
+        public double weight(int bin, int mic) {
+            return weights[bin * mics + mic];
+        }
+    }
+
     public static class Band {
         public int minRing, maxRing;
         public double maxFreq;
@@ -0,0 +1,110 @@
+package acousticeyes.beamforming;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Random;
+
+/* DasKernel using the (incubating) Vector API, processing as many mics at once as the CPU's preferred vector
+ * width allows. Only ever loaded reflectively through DasKernel.vectorKernel(), so that nothing else depends
+ * on the incubator module being present.
+ */
+final class VectorDasKernel implements DasKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double pixel(double[] xRe, double[] xIm, double[] weights, int fromBin, int toBin, int mics,
+                        double[] phasorRe, double[] phasorIm, int base, double[] pr, double[] pi) {
+        return bins(xRe, xIm, weights, fromBin, toBin, mics, phasorRe, phasorIm, base, pr, pi, null) / mics;
+    }
+
+    @Override
+    public void powers(double[] xRe, double[] xIm, double[] weights, int fromBin, int toBin, int mics,
+                       double[] phasorRe, double[] phasorIm, int base, double[] pr, double[] pi, double[] power) {
+        bins(xRe, xIm, weights, fromBin, toBin, mics, phasorRe, phasorIm, base, pr, pi, power);
+    }
+
+    // the sum of the bins' beam magnitudes, also storing each bin's power in power if it isn't null
+    private static double bins(double[] xRe, double[] xIm, double[] weights, int fromBin, int toBin, int mics,
+                               double[] phasorRe, double[] phasorIm, int base, double[] pr, double[] pi, double[] power) {
+        for (int m = 0; m < mics; m++) {
+            SteeringTable.phasorPower(phasorRe[base + m], phasorIm[base + m], fromBin, pr, pi, m);
+        }
+        int upper = SPECIES.loopBound(mics);
+        double total = 0;
+        for (int k = fromBin; k < toBin; k++) {
+            int row = k * mics;
+            DoubleVector accR = DoubleVector.zero(SPECIES);
+            DoubleVector accI = DoubleVector.zero(SPECIES);
+            int m = 0;
+            for (; m < upper; m += SPECIES.length()) {
+                DoubleVector xr = DoubleVector.fromArray(SPECIES, xRe, row + m);
+                DoubleVector xi = DoubleVector.fromArray(SPECIES, xIm, row + m);
+                DoubleVector w = DoubleVector.fromArray(SPECIES, weights, row + m);
+                DoubleVector vpr = DoubleVector.fromArray(SPECIES, pr, m);
+                DoubleVector vpi = DoubleVector.fromArray(SPECIES, pi, m);
+                DoubleVector rotr = xr.mul(vpr).sub(xi.mul(vpi));
+                DoubleVector roti = xr.mul(vpi).add(xi.mul(vpr));
+                accR = rotr.fma(w, accR);
+                accI = roti.fma(w, accI);
+                // advance the phasors to the next bin
+                DoubleVector br = DoubleVector.fromArray(SPECIES, phasorRe, base + m);
+                DoubleVector bi = DoubleVector.fromArray(SPECIES, phasorIm, base + m);
+                vpr.mul(br).sub(vpi.mul(bi)).intoArray(pr, m);
+                vpi.mul(br).add(vpr.mul(bi)).intoArray(pi, m);
+            }
+            double sr = accR.reduceLanes(VectorOperators.ADD);
+            double si = accI.reduceLanes(VectorOperators.ADD);
+            for (; m < mics; m++) {
+                double xr = xRe[row + m], xi = xIm[row + m], w = weights[row + m];
+                sr += w * (xr * pr[m] - xi * pi[m]);
+                si += w * (xr * pi[m] + xi * pr[m]);
+                double newpr = pr[m] * phasorRe[base + m] - pi[m] * phasorIm[base + m];
+                pi[m] = pi[m] * phasorRe[base + m] + pr[m] * phasorIm[base + m];
+                pr[m] = newpr;
+            }
+            double p = sr * sr + si * si;
+            if (power != null) {
+                power[k] = p;
+            }
+            total += Math.sqrt(p);
+        }
+        return total;
+    }
+
+    // compares the SIMD and scalar sweeps on random spectra.
+    // run with --add-modules jdk.incubator.vector
+    public static void main(String[] args) {
+        PhasedArray arr = PhasedArray.radial(8, 12, 0.05, 0.3, 1.25, 1, 0);
+        int steps = 64;
+        double fov = Math.PI / 2;
+        Random r = new Random(0);
+        double[][] spectra = new double[arr.mics.size()][256];
+        for (double[] s : spectra) {
+            for (int i = 0; i < s.length; i++) s[i] = r.nextGaussian();
+        }
+        SteeringTable table = SteeringTable.get(arr, -fov / 2, fov / 2, steps, -fov / 2, fov / 2, steps, spectra[0].length);
+        double[][] scalar = new double[steps][steps];
+        double[][] simd = new double[steps][steps];
+        System.out.println("vector species: " + SPECIES);
+        for (int pass = 0; pass < 5; pass++) {
+            arr.setUseVectorKernel(false);
+            long t0 = System.nanoTime();
+            arr.sweepBeamFreqDomain(spectra, table, 0, steps, scalar);
+            long t1 = System.nanoTime();
+            arr.setUseVectorKernel(true);
+            arr.sweepBeamFreqDomain(spectra, table, 0, steps, simd);
+            long t2 = System.nanoTime();
+            double maxDiff = 0;
+            for (int i = 0; i < steps; i++) {
+                for (int j = 0; j < steps; j++) {
+                    maxDiff = Math.max(maxDiff, Math.abs(simd[i][j] - scalar[i][j]) / scalar[i][j]);
+                }
+            }
+            System.out.printf("scalar %.1f ms, SIMD %.1f ms (%.2fx), max relative difference %.1e%n",
+                    (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t1 - t0) / (double) (t2 - t1), maxDiff);
+        }
+    }
+}
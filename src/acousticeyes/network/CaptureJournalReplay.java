@@ -0,0 +1,129 @@
+package acousticeyes.network;
+
+import acousticeyes.beamforming.BeamformingManager;
+import acousticeyes.beamforming.PhasedArray;
+import acousticeyes.ui.MainPanel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/* Feeds packets recorded by CaptureJournalWriter back into a MicrophoneDataDispatcher, without a
+ * socket. Packets are published into the dispatcher's packet ring, exactly like a receive thread
+ * would, either with their original inter-arrival timing or as fast as the pipeline drains the ring.
+ *
+ * For repeatable results from a replay that isn't in real time, the BeamformingManager should be in
+ * lossless mode and the dispatcher's frame timeouts off (as main does): the full ring then holds the
+ * replay back until the pipeline has taken each frame, and no frame is dropped or given up on
+ * depending on how long processing happened to take.
+ */
+public class CaptureJournalReplay {
+
+    private final List<Path> segments = new ArrayList<>();
+
+    public CaptureJournalReplay(Path dir) throws IOException {
+        for (int i = 0; Files.exists(CaptureJournalWriter.segmentPath(dir, i)); i++) {
+            segments.add(CaptureJournalWriter.segmentPath(dir, i));
+        }
+        if (segments.isEmpty()) throw new IOException("no capture journal segments in " + dir);
+    }
+
+    /* Replays the whole journal into the dispatcher's packet ring, returning the number of packets replayed.
+     * They are counted in its IngestStats as received when they are published.
+     *   realTime - if true, packets are published at their original relative receive times, and dropped if
+     *              the ring is full (as they would be live); otherwise they are published back-to-back,
+     *              waiting whenever the ring is full, so nothing is lost.
+     */
+    public long replay(MicrophoneDataDispatcher mdd, boolean realTime) throws IOException {
+        PacketRing ring = mdd.getPacketRing();
+        IngestStats stats = mdd.getIngestStats();
+        long count = 0;
+        long firstNanos = 0;
+        long startNanos = 0;
+        for (Path p : segments) {
+            MappedByteBuffer seg;
+            try (FileChannel ch = FileChannel.open(p)) {
+                seg = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            if (seg.limit() < CaptureJournalWriter.SEGMENT_HEADER_SIZE || seg.getInt(0) != CaptureJournalWriter.SEGMENT_MAGIC) {
+                throw new IOException("not a capture journal segment: " + p);
+            }
+            int pos = CaptureJournalWriter.SEGMENT_HEADER_SIZE;
+            while (pos + CaptureJournalWriter.RECORD_HEADER_SIZE <= seg.limit()) {
+                long t = seg.getLong(pos);
+                int len = seg.getInt(pos + 8);
+                if (len == 0) break;
+                int data = pos + CaptureJournalWriter.RECORD_HEADER_SIZE;
+                pos = data + len;
+                if (realTime) {
+                    if (count == 0) {
+                        firstNanos = t;
+                        startNanos = System.nanoTime();
+                    }
+                    long wait;
+                    while ((wait = startNanos + (t - firstNanos) - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    while (ring.size() >= ring.capacity()) {
+                        Thread.onSpinWait();
+                    }
+                }
+                count++;
+                stats.packetReceived(System.nanoTime());
+                ByteBuffer slot = ring.claim();
+                if (slot == null || len > slot.capacity()) continue;
+                slot.put(0, seg, data, len).limit(len);
+                ring.publish();
+            }
+        }
+        return count;
+    }
+
+    // Runs a capture through the full beamforming chain with no display, and reports throughput.
+    // Usage: CaptureJournalReplay <journal directory> [realtime]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        AtomicLong heatmaps = new AtomicLong();
+        MainPanel sink = new MainPanel() {
+            @Override
+            public void heatmapUpdated(double[][] hm) {
+                heatmaps.incrementAndGet();
+            }
+        };
+        PhasedArray arr = PhasedArray.radial(8, 12, 0.05, 0.3, 1.25, 1, 0);
+        BeamformingManager bm = new BeamformingManager(arr, sink);
+        MicrophoneDataDispatcher mdd = new MicrophoneDataDispatcher(bm);
+        CaptureJournalReplay replay = new CaptureJournalReplay(Paths.get(args[0]));
+        boolean realTime = args.length > 1 && args[1].equals("realtime");
+        if (!realTime) {
+            bm.setLossless(true);
+            mdd.setFrameTimeouts(false);
+        }
+
+        long time = System.currentTimeMillis();
+        long packets = replay.replay(mdd, realTime);
+        while (mdd.getPacketRing().size() > 0) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(MicrophoneDataDispatcher.FRAME_TIMEOUT_MS * 2L); // let the last frames time out or dispatch
+        while (bm.isBusy()) {
+            Thread.sleep(1);
+        }
+        time = System.currentTimeMillis() - time;
+        System.out.println("Replayed " + packets + " packets in " + time + " ms (" + (packets * 1000 / Math.max(time, 1)) + " packets/s)");
+        System.out.println("Frames dispatched: " + mdd.getDispatchLatency().count() + ", heatmaps computed: " + heatmaps.get());
+        System.out.println(mdd.getDispatchLatency());
+        System.out.println(mdd.getIngestStats());
+        System.out.println(bm.getSpectrumStage());
+        System.out.println(bm.getBeamformingStage());
+        System.exit(0);
+    }
+}
@@ -0,0 +1,102 @@
+package acousticeyes.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* Records the raw mic data packet stream to disk, for incident analysis and for replaying through
+ * the pipeline offline (see CaptureJournalReplay). The journal is a directory of fixed-size segment
+ * files, each memory-mapped while it is being written, so appending a packet is just a copy into the
+ * page cache with no syscall. Segment layout:
+ * - 4 byte magic number (SEGMENT_MAGIC)
+ * - records, each: 8 byte receive timestamp (System.nanoTime()), 4 byte packet length, packet bytes
+ * - a record with length 0 (or the end of the file) marks the end of the segment
+ * All values are big-endian. Packets are stored exactly as received, header included.
+ *
+ * Not thread-safe: append() should only be called from the receive thread.
+ */
+public class CaptureJournalWriter implements Closeable {
+
+    static final int SEGMENT_MAGIC = 0x41454a31; // "AEJ1"
+    static final int SEGMENT_HEADER_SIZE = 4;
+    static final int RECORD_HEADER_SIZE = 12;
+    public static final long DEFAULT_SEGMENT_SIZE = 256L << 20; // ~100 s of mic data
+
+    private final Path dir;
+    private final long segmentSize;
+    private int segmentIndex = -1;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+
+    public CaptureJournalWriter(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public CaptureJournalWriter(Path dir, long segmentSize) throws IOException {
+        if (segmentSize > Integer.MAX_VALUE) throw new IllegalArgumentException("segments are limited to 2 GB");
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        nextSegment();
+    }
+
+    static Path segmentPath(Path dir, int index) {
+        return dir.resolve(String.format("capture-%05d.journal", index));
+    }
+
+    // appends the packet between packet's position and limit, leaving its position unchanged
+    public void append(ByteBuffer packet, long receiveNanos) throws IOException {
+        int len = packet.remaining();
+        reserve(len);
+        int pos = segment.position();
+        segment.putLong(receiveNanos).putInt(len);
+        segment.put(pos + RECORD_HEADER_SIZE, packet, packet.position(), len);
+        segment.position(pos + RECORD_HEADER_SIZE + len);
+    }
+
+    public void append(byte[] packet, int offset, int len, long receiveNanos) throws IOException {
+        reserve(len);
+        segment.putLong(receiveNanos).putInt(len).put(packet, offset, len);
+    }
+
+    // makes sure there is room for a record of len bytes plus the end-of-segment marker
+    private void reserve(int len) throws IOException {
+        if (len <= 0) throw new IllegalArgumentException("can't record an empty packet");
+        if (segment.remaining() < 2 * RECORD_HEADER_SIZE + len) {
+            nextSegment();
+            if (segment.remaining() < 2 * RECORD_HEADER_SIZE + len) throw new IOException("packet too large for journal segment");
+        }
+    }
+
+    private void nextSegment() throws IOException {
+        finishSegment();
+        segmentIndex++;
+        channel = FileChannel.open(segmentPath(dir, segmentIndex),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize); // zero-filled, so it's terminated already
+        segment.putInt(SEGMENT_MAGIC);
+    }
+
+    private void finishSegment() throws IOException {
+        if (segment == null) return;
+        segment.force();
+        try {
+            // drop the unused tail. this fails on platforms that don't allow truncating a mapped file, in which
+            // case the segment is left padded with zeros, which reads back the same
+            channel.truncate(segment.position() + RECORD_HEADER_SIZE);
+        } catch (IOException ignored) {
+        }
+        channel.close();
+        segment = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finishSegment();
+    }
+}
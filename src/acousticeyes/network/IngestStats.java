@@ -0,0 +1,167 @@
+package acousticeyes.network;
+
+import acousticeyes.util.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/* Counters describing what happened to the mic data stream between the socket and BeamformingManager,
+ * so that it's possible to tell why frames aren't showing up: packets lost on the network (sequence
+ * gaps), dropped because the assembly thread fell behind (ring overflows), arriving too late for their
+ * frame, duplicated, or frames given up on because they never completed.
+ *
+ * Everything here can be updated and read from any thread without locking. Counters are cumulative;
+ * toString() formats them as a single log line, and startLogging() prints that line periodically.
+ */
+public class IngestStats {
+
+    // nominal time between packets from the board
+    private static final long PACKET_INTERVAL_NS = 1_000_000_000L * UdpServer.SAMPLES_PER_MIC / MicrophoneDataDispatcher.SAMPLES_PER_SECOND;
+    // a packet this far behind the highest sequence number means the sender restarted, as in MicrophoneDataDispatcher
+    private static final int RESYNC_PACKETS = MicrophoneDataDispatcher.RESYNC_FRAMES * MicrophoneDataDispatcher.PACKETS_PER_FRAME;
+
+    private final LongAdder received = new LongAdder(); // mic data packets received from the socket (or replayed)
+    private final LongAdder duplicates = new LongAdder(); // packets whose samples had already arrived
+    private final LongAdder outOfRange = new LongAdder(); // packets for frames already dispatched or given up on
+    private final LongAdder sequenceGaps = new LongAdder(); // sequence numbers skipped over (some may turn up later, reordered)
+    private final LongAdder reordered = new LongAdder(); // packets with a lower sequence number than one before them
+    private final LongAdder resyncs = new LongAdder(); // sequence numbers restarting far behind, e.g. after a sender reset
+    private final LongAdder framesDispatched = new LongAdder();
+    private final LongAdder framesConcealed = new LongAdder(); // dispatched with missing packets filled in (counted in framesDispatched too)
+    private final LongAdder incompleteFrames = new LongAdder(); // dropped because they were missing packets
+    private final LongAdder timedOutFrames = new LongAdder(); // reached their deadline incomplete (then concealed or dropped)
+    // deviation of the time between consecutive packets from the nominal packet interval
+    private final Histogram interArrivalJitter = new Histogram("inter-arrival jitter (us)", 10, 200);
+    private final PacketRing ring;
+
+    private long lastArrivalNanos = 0; // receive thread only
+    private int lastSeq; // assembly thread only
+    private boolean seenSeq = false;
+
+    IngestStats(PacketRing ring) {
+        this.ring = ring;
+    }
+
+    // called by the receive thread for each mic data packet
+    void packetReceived(long receiveNanos) {
+        received.increment();
+        if (lastArrivalNanos != 0) {
+            interArrivalJitter.record(Math.abs(receiveNanos - lastArrivalNanos - PACKET_INTERVAL_NS) / 1000);
+        }
+        lastArrivalNanos = receiveNanos;
+    }
+
+    // called by the assembly thread for each packet taken off the ring
+    void sequenceNumber(int seq) {
+        if (seenSeq && seq < lastSeq - RESYNC_PACKETS) {
+            // too far back to be reordering: measure from here on, instead of counting everything as reordered
+            resyncs.increment();
+            seenSeq = false;
+        }
+        if (seenSeq) {
+            if (seq > lastSeq + 1) {
+                sequenceGaps.add(seq - lastSeq - 1);
+            } else if (seq <= lastSeq) {
+                reordered.increment();
+                return; // keep measuring gaps from the highest sequence number seen
+            }
+        }
+        lastSeq = seq;
+        seenSeq = true;
+    }
+
+    void duplicate() {
+        duplicates.increment();
+    }
+
+    void outOfRange() {
+        outOfRange.increment();
+    }
+
+    void frameDispatched(MicFrameData f) {
+        framesDispatched.increment();
+        if (f.lostPackets > 0) {
+            framesConcealed.increment();
+        }
+    }
+
+    void frameIncomplete() {
+        incompleteFrames.increment();
+    }
+
+    void frameTimedOut() {
+        timedOutFrames.increment();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    public long getOutOfRange() {
+        return outOfRange.sum();
+    }
+
+    public long getSequenceGaps() {
+        return sequenceGaps.sum();
+    }
+
+    public long getReordered() {
+        return reordered.sum();
+    }
+
+    public long getResyncs() {
+        return resyncs.sum();
+    }
+
+    // packets dropped because the assembly thread couldn't keep up
+    public long getRingOverflows() {
+        return ring.getOverflows();
+    }
+
+    public long getFramesDispatched() {
+        return framesDispatched.sum();
+    }
+
+    public long getFramesConcealed() {
+        return framesConcealed.sum();
+    }
+
+    public long getIncompleteFrames() {
+        return incompleteFrames.sum();
+    }
+
+    public long getTimedOutFrames() {
+        return timedOutFrames.sum();
+    }
+
+    public Histogram getInterArrivalJitter() {
+        return interArrivalJitter;
+    }
+
+    // prints toString() every periodMs milliseconds from a daemon thread
+    public void startLogging(long periodMs) {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(periodMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println(this);
+            }
+        }, "IngestStatsLogger");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ingest: received=%d gaps=%d reordered=%d resyncs=%d duplicates=%d outOfRange=%d ringOverflows=%d " +
+                        "frames: dispatched=%d concealed=%d incomplete=%d timedOut=%d; %s",
+                getReceived(), getSequenceGaps(), getReordered(), getResyncs(), getDuplicates(), getOutOfRange(), getRingOverflows(),
+                getFramesDispatched(), getFramesConcealed(), getIncompleteFrames(), getTimedOutFrames(), interArrivalJitter);
+    }
+}
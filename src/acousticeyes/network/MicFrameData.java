@@ -1,49 +1,211 @@
 package acousticeyes.network;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /* Represents on frame's worth of microphone data. Packet data is copied into this structure
  * as packets arrive.
+ *
+ * A frame is written by a single assembly thread. Completion is published through the volatile
+ * 'complete' flag, which is set after the last packet's samples have been written, so any thread
+ * that observes isComplete() == true also sees all of the sample data.
+ *
+ * Samples are stored either as doubles or as 16-bit PCM (see SampleStorage); exactly one of
+ * samples and pcm is non-null. PCM is converted to floating point only when the spectra are
+ * computed (see StreamingStft.process).
  */
 public class MicFrameData {
 
-    public double[][] samples;
+    public static final double PCM_SCALE = 1.0 / 32768; // converts pcm values to the same scale as samples
+
+    public double[][] samples; // indexed by microphone number, sample; null if storing INT16
+    public short[] pcm; // mic-major: sample s of mic m is pcm[m * SAMPLES_PER_FRAME + s]; null if storing DOUBLE
     public int startSeq; // sequence number of first packet
     private long[] filledPackets; // bitmap indicating which packets have arrived
     public int np = 0;
+    public int lostPackets = 0; // packets that never arrived and were filled in by concealMissingPackets
+    public long queuedNanos; // System.nanoTime() when it was handed to BeamformingManager.updateLatestFrame
+    private volatile boolean complete = false;
+    // set by whichever thread takes the frame out of assembly, either to dispatch it or to release it
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+    long firstPacketNanos; // System.nanoTime() when the frame's first packet arrived
+    volatile long deadlineNanos; // after which an incomplete frame is abandoned
+    private MicFrameDataPool pool; // pool to return this frame to once it is no longer needed; null if not pooled
 
     // mask for last partial entry in filledPackets
     private static final long MASK = MicrophoneDataDispatcher.PACKETS_PER_FRAME % 64 == 0 ? -1 :
             (1L << MicrophoneDataDispatcher.PACKETS_PER_FRAME % 64) - 1;
 
     public MicFrameData(int startSeq) {
-        samples = new double[UdpServer.NUM_MICROPHONES][MicrophoneDataDispatcher.SAMPLES_PER_FRAME];
+        this(startSeq, SampleStorage.DOUBLE, null);
+    }
+
+    MicFrameData(int startSeq, SampleStorage storage, MicFrameDataPool pool) {
+        this.pool = pool;
+        if (storage == SampleStorage.INT16) {
+            pcm = new short[UdpServer.NUM_MICROPHONES * MicrophoneDataDispatcher.SAMPLES_PER_FRAME];
+        } else {
+            samples = new double[UdpServer.NUM_MICROPHONES][MicrophoneDataDispatcher.SAMPLES_PER_FRAME];
+        }
         this.startSeq = startSeq;
         filledPackets = new long[(MicrophoneDataDispatcher.PACKETS_PER_FRAME + 63) / 64];
     }
 
-    public boolean isInRange(MicDataPacket mdp) {
-        return mdp.sequenceNumber >= startSeq &&
-                mdp.sequenceNumber < startSeq + MicrophoneDataDispatcher.PACKETS_PER_FRAME;
+    // prepares a recycled frame to collect packets starting at startSeq. sample data is not cleared, since
+    // every sample of a complete frame gets overwritten anyway
+    void reset(int startSeq) {
+        this.startSeq = startSeq;
+        np = 0;
+        lostPackets = 0;
+        complete = false;
+        claimed.set(false);
+        Arrays.fill(filledPackets, 0);
+    }
+
+    // returns true for exactly one caller, which then owns the frame
+    boolean tryClaim() {
+        return claimed.compareAndSet(false, true);
+    }
+
+    boolean isClaimed() {
+        return claimed.get();
     }
 
-    public void copyPacket(MicDataPacket mdp) {
-        if (!isInRange(mdp)) return;
-        if (isFilled(mdp.sequenceNumber)) {
-            System.err.println("Already filled sequence number " + mdp.sequenceNumber);
-            return;
+    // hands this frame back to its pool, if it came from one. the caller must not touch it afterwards
+    public void release() {
+        if (pool != null) {
+            pool.release(this);
         }
-        np++;
-        int start = (mdp.sequenceNumber - startSeq) * UdpServer.SAMPLES_PER_MIC;
-        for (int m = 0; m < samples.length; m++) {
+    }
+
+    public boolean isInRange(MicDataPacket mdp) {
+        return isInRange(mdp.sequenceNumber);
+    }
+
+    public boolean isInRange(int seq) {
+        return seq >= startSeq && seq < startSeq + MicrophoneDataDispatcher.PACKETS_PER_FRAME;
+    }
+
+    // the copy/decode methods return false, without touching the frame, if the packet isn't part of this frame
+    // or its samples have already arrived (a duplicate)
+    public boolean copyPacket(MicDataPacket mdp) {
+        int start = beginPacket(mdp.sequenceNumber);
+        if (start < 0) return false;
+        for (int m = 0; m < UdpServer.NUM_MICROPHONES; m++) {
             for (int s = 0; s < UdpServer.SAMPLES_PER_MIC; s++) {
-                samples[m][start + s] = mdp.samples[m][s];
+                if (pcm != null) {
+                    double x = Math.max(-1.0, Math.min(mdp.samples[m][s], 32767.0 / 32768));
+                    pcm[m * MicrophoneDataDispatcher.SAMPLES_PER_FRAME + start + s] = (short) Math.round(x * 32768);
+                } else {
+                    samples[m][start + s] = mdp.samples[m][s];
+                }
             }
         }
-        setFilled(mdp.sequenceNumber);
+        finishPacket(mdp.sequenceNumber);
+        return true;
     }
 
-    // determines whether all packets for this frame have arrived
+    // decodes one packet's samples straight from the receive buffer into this frame, without going through
+    // an intermediate MicDataPacket. offset is the index of the first sample byte (i.e., just past the header)
+    public boolean decodePacket(int seq, byte[] data, int offset) {
+        int start = beginPacket(seq);
+        if (start < 0) return false;
+        for (int m = 0; m < UdpServer.NUM_MICROPHONES; m++) {
+            if (pcm != null) {
+                UdpServer.SAMPLE_FORMAT.decodeSamples(data, offset, UdpServer.SAMPLES_PER_MIC, pcm, m * MicrophoneDataDispatcher.SAMPLES_PER_FRAME + start);
+            } else {
+                UdpServer.SAMPLE_FORMAT.decodeSamples(data, offset, UdpServer.SAMPLES_PER_MIC, samples[m], start);
+            }
+            offset = UdpServer.SAMPLE_FORMAT.advance(offset, UdpServer.SAMPLES_PER_MIC);
+        }
+        finishPacket(seq);
+        return true;
+    }
+
+    // same as above, for packets received into a ByteBuffer (see NioUdpServer)
+    public boolean decodePacket(int seq, ByteBuffer data, int offset) {
+        int start = beginPacket(seq);
+        if (start < 0) return false;
+        for (int m = 0; m < UdpServer.NUM_MICROPHONES; m++) {
+            if (pcm != null) {
+                UdpServer.SAMPLE_FORMAT.decodeSamples(data, offset, UdpServer.SAMPLES_PER_MIC, pcm, m * MicrophoneDataDispatcher.SAMPLES_PER_FRAME + start);
+            } else {
+                UdpServer.SAMPLE_FORMAT.decodeSamples(data, offset, UdpServer.SAMPLES_PER_MIC, samples[m], start);
+            }
+            offset = UdpServer.SAMPLE_FORMAT.advance(offset, UdpServer.SAMPLES_PER_MIC);
+        }
+        finishPacket(seq);
+        return true;
+    }
+
+    // returns the index of packet seq's first sample within the frame, or -1 if it should be ignored
+    private int beginPacket(int seq) {
+        if (!isInRange(seq) || isFilled(seq)) return -1;
+        return (seq - startSeq) * UdpServer.SAMPLES_PER_MIC;
+    }
+
+    private void finishPacket(int seq) {
+        np++;
+        setFilled(seq);
+        complete = np == MicrophoneDataDispatcher.PACKETS_PER_FRAME;
+    }
+
+    // determines whether all packets for this frame have arrived (or the missing ones have been concealed)
     public boolean isComplete() {
-        return np == MicrophoneDataDispatcher.PACKETS_PER_FRAME;
+        return complete;
+    }
+
+    public int missingPackets() {
+        return MicrophoneDataDispatcher.PACKETS_PER_FRAME - np;
+    }
+
+    // Fills in the samples of packets that never arrived, so that the frame can be processed anyway. Each run
+    // of missing packets is linearly interpolated, per microphone, between the last sample before the gap and
+    // the first sample after it (holding the edge value for gaps at the start or end of the frame). This keeps
+    // the waveform continuous, so a short gap doesn't smear broadband energy across the whole spectrum the
+    // way zero-filling would. Marks the frame complete, with lostPackets recording how many were filled in.
+    public void concealMissingPackets() {
+        int spp = UdpServer.SAMPLES_PER_MIC;
+        int p = 0;
+        while (p < MicrophoneDataDispatcher.PACKETS_PER_FRAME) {
+            if (isFilled(startSeq + p)) {
+                p++;
+                continue;
+            }
+            int gapStart = p;
+            while (p < MicrophoneDataDispatcher.PACKETS_PER_FRAME && !isFilled(startSeq + p)) {
+                p++;
+            }
+            int s0 = gapStart * spp; // first missing sample
+            int s1 = p * spp; // first sample after the gap
+            int n = MicrophoneDataDispatcher.SAMPLES_PER_FRAME;
+            for (int m = 0; m < UdpServer.NUM_MICROPHONES; m++) {
+                if (pcm != null) {
+                    int base = m * n;
+                    int before = s0 > 0 ? pcm[base + s0 - 1] : (s1 < n ? pcm[base + s1] : 0);
+                    int after = s1 < n ? pcm[base + s1] : before;
+                    for (int s = s0; s < s1; s++) {
+                        pcm[base + s] = (short) (before + (after - before) * (s - s0 + 1) / (s1 - s0 + 1));
+                    }
+                } else {
+                    double[] x = samples[m];
+                    double before = s0 > 0 ? x[s0 - 1] : (s1 < n ? x[s1] : 0);
+                    double after = s1 < n ? x[s1] : before;
+                    for (int s = s0; s < s1; s++) {
+                        x[s] = before + (after - before) * (s - s0 + 1) / (s1 - s0 + 1);
+                    }
+                }
+            }
+        }
+        lostPackets = missingPackets();
+        complete = true;
+    }
+
+    // whether packet seq of this frame has its samples in place, having arrived or been filled in by concealMissingPackets
+    boolean hasPacket(int seq) {
+        int s = seq - startSeq;
+        return s >= 0 && s < MicrophoneDataDispatcher.PACKETS_PER_FRAME && (complete || isFilled(seq));
     }
 
     private boolean isFilled(int seq) {
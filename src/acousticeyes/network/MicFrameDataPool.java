@@ -0,0 +1,37 @@
+package acousticeyes.network;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/* Recycles MicFrameData containers so that the steady-state ingest path does not allocate.
+ * MicrophoneDataDispatcher acquires a frame whenever it starts collecting a new one, and the
+ * frame is handed back with MicFrameData.release() by whoever owns it last (the dispatcher, if
+ * the frame is abandoned, or BeamformingManager once it has finished processing it).
+ */
+public class MicFrameDataPool {
+
+    // ArrayBlockingQueue rather than ConcurrentLinkedQueue, since the latter allocates a node per offer
+    private final ArrayBlockingQueue<MicFrameData> free;
+    private final SampleStorage storage;
+
+    public MicFrameDataPool(int capacity, SampleStorage storage) {
+        this.storage = storage;
+        free = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.offer(new MicFrameData(0, storage, this));
+        }
+    }
+
+    // returns a cleared frame starting at startSeq. only allocates if every pooled frame is in use
+    public MicFrameData acquire(int startSeq) {
+        MicFrameData frame = free.poll();
+        if (frame == null) {
+            return new MicFrameData(startSeq, storage, this);
+        }
+        frame.reset(startSeq);
+        return frame;
+    }
+
+    void release(MicFrameData frame) {
+        free.offer(frame); // if the pool is already full, the frame is just left for the garbage collector
+    }
+}
@@ -1,19 +1,41 @@
 package acousticeyes.network;
 
 import acousticeyes.beamforming.BeamformingManager;
+import acousticeyes.beamforming.SlidingDftBank;
+import acousticeyes.util.Histogram;
 
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /* Assembles individual microphone data packets into MicFrameData containers which represent
  * all of the microphone data for a whole frame, and sends complete frames (ones with no
  * missing packets) off to BeamformingManager for processing.
  *
- * This schedules a periodic task, once per frame, which starts collecting and assembling
- * packets. Packets could arrive late, or not at all, so this task will time out after one
- * frame duration so that if there are missing packets, it does not block future frame's
- * processing waiting for data that will never show up.
+ * Receive threads don't call in here directly; they publish raw packets into a PacketRing,
+ * which a dedicated assembly thread drains, so the receive thread never waits on frame
+ * assembly and no locks are taken per packet. The assembly thread is the only thread that
+ * writes to frames being assembled, and it dispatches a frame the moment the packet that
+ * completes it has been decoded.
+ *
+ * Frames are aligned to multiples of PACKETS_PER_FRAME in sequence number space, and up to
+ * REORDER_FRAMES consecutive frames can be assembled at once, so a packet that arrives early
+ * (or late, but before its frame is given up on) still lands in the right frame instead of
+ * shifting frame boundaries. When a frame is dispatched, older frames still being assembled
+ * are retired (abandoned, or concealed and dispatched first), since they could only be
+ * delivered out of order afterwards.
+ *
+ * Packets could arrive late, or not at all, so any frame that is still incomplete FRAME_TIMEOUT_MS
+ * after its first packet arrived is given up on. That way missing packets don't block future
+ * frames waiting for data that will never show up. A separate deadline thread sleeps until the
+ * next deadline and then wakes the assembly thread, which does the actual expiring so that it
+ * remains the only thread touching frames under assembly. Optionally (setMaxConcealedPackets),
+ * expired frames missing only a few packets are patched up and dispatched instead of dropped.
+ *
+ * When BeamformingManager is tracking bins (see BeamformingManager.trackBins), the assembly thread
+ * also feeds every packet to its SlidingDftBank as soon as it and all the packets before it are in,
+ * so the stream stays in sequence order despite reordering. A gap that is given up on restarts the bank.
  */
 public class MicrophoneDataDispatcher {
 
@@ -23,44 +45,333 @@ public class MicrophoneDataDispatcher {
     public static final int SAMPLES_PER_FRAME = 420; //SAMPLES_PER_SECOND * MS_PER_FRAME / 1000;
     public static final int PACKETS_PER_FRAME = 60; // SAMPLES_PER_FRAME / UdpServer.SAMPLES_PER_MIC;
 
-    private boolean initialized = false; // whether any packets for the current frame have been received
-    private MicFrameData frame;
+    // a frame's packets are spread over a whole frame duration in real time, so allow some slack past that
+    public static final int FRAME_TIMEOUT_MS = MS_PER_FRAME * 3 / 2;
+
+    private static final int REORDER_FRAMES = 4; // frames that can be assembled concurrently; must be a power of 2
+    static final int RESYNC_FRAMES = 64; // a packet this many frames behind the window means the sender restarted
+    // frames being assembled, plus frames waiting in or being processed by BeamformingManager
+    private static final int FRAME_POOL_SIZE = REORDER_FRAMES + 3;
+    private static final int RING_CAPACITY = 1024; // ~17 frames of packets
+    private static final int IDLE_SPINS = 100; // busy-wait this many times on an empty ring before sleeping
+    // an idle assembly thread is woken by the next packet or by the deadline thread, so this is only a backstop
+    private static final long IDLE_PARK_NS = 100_000_000;
+
+    // frames being assembled, indexed by frame number (seq / PACKETS_PER_FRAME) modulo REORDER_FRAMES. only
+    // written by the assembly thread; the deadline thread just reads their deadlines
+    private final AtomicReferenceArray<MicFrameData> window = new AtomicReferenceArray<>(REORDER_FRAMES);
+    private int oldestFrame; // oldest frame number still accepting packets; assembly thread only
+    // per slot, the number of the last frame given up on there, so that its late packets are dropped rather than
+    // starting it over; assembly thread only
+    private final int[] abandoned = new int[REORDER_FRAMES];
+    private boolean synced = false; // whether oldestFrame has been set from the first packet
+    private volatile boolean deadlinePassed = false; // set by the deadline thread to make the assembly thread expire frames
+    private volatile int maxConcealedPackets = 0;
+    private volatile boolean frameTimeouts = true;
     private BeamformingManager bfManager;
+    private MicFrameDataPool pool;
+    private PacketRing ring = new PacketRing(RING_CAPACITY, UdpServer.PACKET_BUFFER_SIZE);
+    private final IngestStats stats = new IngestStats(ring);
+    private Thread deadlineThread;
+    private Thread assemblyThread;
+    private final Histogram dispatchLatency = new Histogram("first packet -> dispatch (us)", 500, 128);
+    // assembly thread only
+    private SlidingDftBank trackerFed; // bin tracker the packets up to trackedSeq went to
+    private int trackedSeq; // next packet to feed to the bin tracker
 
     public MicrophoneDataDispatcher(BeamformingManager bm) {
-        frame = new MicFrameData(0);
+        this(bm, SampleStorage.DOUBLE);
+    }
+
+    public MicrophoneDataDispatcher(BeamformingManager bm, SampleStorage storage) {
         bfManager = bm;
-        ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
-        scheduler.scheduleAtFixedRate(this::processFrame, 0, MS_PER_FRAME, TimeUnit.MILLISECONDS);
+        pool = new MicFrameDataPool(FRAME_POOL_SIZE, storage);
+        Arrays.fill(abandoned, Integer.MIN_VALUE);
+        deadlineThread = new Thread(this::watchDeadlines, "FrameDeadline");
+        deadlineThread.setDaemon(true);
+        assemblyThread = new Thread(this::assemblePackets, "FrameAssembler");
+        assemblyThread.setDaemon(true);
+        deadlineThread.start();
+        assemblyThread.start();
+    }
+
+    // ring that receive threads publish raw mic data packets into (see UdpServer for the format)
+    public PacketRing getPacketRing() {
+        return ring;
+    }
+
+    // packet and frame counters for the whole ingest path; receive threads feeding the ring report into these too
+    public IngestStats getIngestStats() {
+        return stats;
+    }
+
+    // time from each dispatched frame's first packet arriving to the frame being handed to BeamformingManager
+    public Histogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    // Packet loss concealment: frames that time out missing at most this many packets have the gaps filled in
+    // (see MicFrameData.concealMissingPackets) and are dispatched with their lostPackets count set, rather than
+    // dropped. 0 (the default) disables concealment.
+    public void setMaxConcealedPackets(int n) {
+        maxConcealedPackets = n;
+    }
+
+    // Frames normally time out FRAME_TIMEOUT_MS after their first packet. A replay that doesn't run in real time
+    // can turn that off, so that what happens to each frame depends only on the packet sequence: incomplete frames
+    // are then retired only when later frames are dispatched or push them out of the reorder window
+    public void setFrameTimeouts(boolean enabled) {
+        frameTimeouts = enabled;
+        LockSupport.unpark(deadlineThread);
+    }
+
+    private void assemblePackets() {
+        int idle = 0;
+        while (true) {
+            if (deadlinePassed) {
+                deadlinePassed = false;
+                expireFrames();
+                LockSupport.unpark(deadlineThread);
+            }
+            ByteBuffer packet = ring.peek();
+            if (packet == null) {
+                if (++idle < IDLE_SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    ring.await(IDLE_PARK_NS);
+                }
+                continue;
+            }
+            idle = 0;
+            accept(packet.getInt(1), packet, UdpServer.HEADER_SIZE);
+            ring.advance();
+        }
+    }
+
+    // sleeps until the earliest deadline of the frames being assembled, then has the assembly thread deal with it
+    private void watchDeadlines() {
+        while (true) {
+            long now = System.nanoTime();
+            long next = Long.MAX_VALUE;
+            for (int i = 0; i < REORDER_FRAMES; i++) {
+                MicFrameData f = window.get(i);
+                if (f != null && !f.isClaimed()) {
+                    next = Math.min(next, f.deadlineNanos);
+                }
+            }
+            if (next == Long.MAX_VALUE || !frameTimeouts) {
+                LockSupport.park(); // woken by the assembly thread when it starts a frame, or by setFrameTimeouts
+            } else if (next - now > 0) {
+                LockSupport.parkNanos(next - now);
+            } else {
+                deadlinePassed = true;
+                LockSupport.unpark(assemblyThread);
+                LockSupport.park(); // woken by the assembly thread once it has expired the frame
+            }
+        }
+    }
+
+    // gives up on (or conceals the losses in) every frame that is past its deadline. assembly thread only
+    private void expireFrames() {
+        long now = System.nanoTime();
+        for (int frameNum = oldestFrame; frameNum < oldestFrame + REORDER_FRAMES; frameNum++) {
+            MicFrameData f = window.get(frameNum & (REORDER_FRAMES - 1));
+            if (f == null || f.isClaimed() || f.startSeq != frameNum * PACKETS_PER_FRAME) continue;
+            if (f.deadlineNanos - now > 0) continue;
+            stats.frameTimedOut();
+            if (f.missingPackets() <= maxConcealedPackets) {
+                f.concealMissingPackets();
+                dispatch(frameNum, f); // this also moves oldestFrame past frameNum
+            } else if (f.tryClaim()) {
+                stats.frameIncomplete();
+                // the frame goes back to the pool, so remember its number to recognize and drop its late packets
+                window.set(frameNum & (REORDER_FRAMES - 1), null);
+                abandoned[frameNum & (REORDER_FRAMES - 1)] = frameNum;
+                f.release();
+            }
+        }
+    }
+
+    // returns frame number frameNum, starting it if necessary, or null if packets for it should be dropped
+    // because it has already been dispatched or given up on. only called from the assembly thread
+    private MicFrameData frameFor(int frameNum) {
+        if (!synced || frameNum < oldestFrame - RESYNC_FRAMES) {
+            if (synced) {
+                for (int i = oldestFrame; i < oldestFrame + REORDER_FRAMES; i++) {
+                    retire(i);
+                }
+                Arrays.fill(abandoned, Integer.MIN_VALUE); // the new run's frame numbers may overlap the old ones
+            }
+            oldestFrame = frameNum;
+            synced = true;
+        }
+        if (frameNum < oldestFrame) return null;
+        if (frameNum >= oldestFrame + REORDER_FRAMES) {
+            // slide the window forward; the frames that fall out of it are never going to be completed in time
+            int newOldest = frameNum - REORDER_FRAMES + 1;
+            for (int i = oldestFrame; i < newOldest && i < oldestFrame + REORDER_FRAMES; i++) {
+                retire(i);
+            }
+            oldestFrame = newOldest;
+        }
+        int slot = frameNum & (REORDER_FRAMES - 1);
+        if (abandoned[slot] == frameNum) return null; // timed out
+        MicFrameData f = window.get(slot);
+        if (f != null && f.startSeq == frameNum * PACKETS_PER_FRAME) {
+            return f;
+        }
+        f = pool.acquire(frameNum * PACKETS_PER_FRAME);
+        f.firstPacketNanos = System.nanoTime();
+        f.deadlineNanos = f.firstPacketNanos + FRAME_TIMEOUT_MS * 1_000_000L;
+        window.set(slot, f);
+        LockSupport.unpark(deadlineThread);
+        return f;
     }
 
-    private void processFrame() {
-        synchronized (this) {
-            initialized = false;
+    // frameFor, for the frame that packet seq belongs to, counting the packet in the stats
+    private MicFrameData frameForPacket(int seq) {
+        stats.sequenceNumber(seq);
+        MicFrameData f = frameFor(Math.floorDiv(seq, PACKETS_PER_FRAME));
+        if (f == null) {
+            stats.outOfRange();
         }
-        long startTime = System.currentTimeMillis();
-        // wait up to a frame duration for the packets for this frame to come in
-        while ((!initialized || !frame.isComplete()) && System.currentTimeMillis() < startTime + MS_PER_FRAME) {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
+        return f;
+    }
+
+    // takes frame number frameNum out of assembly, if it is still being assembled: it is dispatched if its
+    // losses can be concealed, and given up on otherwise
+    private void retire(int frameNum) {
+        int slot = frameNum & (REORDER_FRAMES - 1);
+        MicFrameData f = window.get(slot);
+        if (f != null && f.startSeq == frameNum * PACKETS_PER_FRAME) {
+            window.set(slot, null);
+            if (f.isClaimed()) return;
+            if (f.missingPackets() <= maxConcealedPackets) {
+                f.concealMissingPackets();
+                handOff(f);
+            } else if (f.tryClaim()) {
+                stats.frameIncomplete();
+                f.release();
             }
         }
-        // check initialized here as well - if no packets were received, frame could still refer to a previous completed frame
-        if (initialized && frame.isComplete()) {
-            bfManager.updateLatestFrame(frame);
+    }
+
+    private void dispatchIfComplete(int frameNum, MicFrameData f) {
+        if (f.isComplete()) {
+            dispatch(frameNum, f);
         }
+    }
 
+    private void dispatch(int frameNum, MicFrameData f) {
+        // older frames still in the window could only be delivered out of order after this one
+        for (int i = oldestFrame; i < frameNum; i++) {
+            retire(i);
+        }
+        window.set(frameNum & (REORDER_FRAMES - 1), null);
+        oldestFrame = frameNum + 1;
+        handOff(f);
+    }
+
+    private void handOff(MicFrameData f) {
+        if (f.tryClaim()) {
+            trackRest(f);
+            dispatchLatency.record((System.nanoTime() - f.firstPacketNanos) / 1000);
+            stats.frameDispatched(f);
+            // bfManager now owns the frame and releases it back to the pool when done
+            bfManager.updateLatestFrame(f);
+        }
     }
 
-    // called from packet processor thread
+    // The accept methods are not thread-safe, and frame expiry also runs on the assembly thread, so they
+    // must only be called from the assembly thread. Other packet sources should publish into getPacketRing().
     public void accept(MicDataPacket mdp) {
-        synchronized (this) {
-            if (!initialized) {
-                initialized = true;
-                frame = new MicFrameData(mdp.sequenceNumber);
+        int frameNum = Math.floorDiv(mdp.sequenceNumber, PACKETS_PER_FRAME);
+        MicFrameData f = frameForPacket(mdp.sequenceNumber);
+        if (f == null) return;
+        if (!f.copyPacket(mdp)) {
+            stats.duplicate();
+            return;
+        }
+        trackPackets();
+        dispatchIfComplete(frameNum, f);
+    }
+
+    // decodes the packet's samples directly out of the receive buffer, starting at data[offset], so nothing is allocated per packet
+    public void accept(int seq, byte[] data, int offset) {
+        int frameNum = Math.floorDiv(seq, PACKETS_PER_FRAME);
+        MicFrameData f = frameForPacket(seq);
+        if (f == null) return;
+        if (!f.decodePacket(seq, data, offset)) {
+            stats.duplicate();
+            return;
+        }
+        trackPackets();
+        dispatchIfComplete(frameNum, f);
+    }
+
+    public void accept(int seq, ByteBuffer data, int offset) {
+        int frameNum = Math.floorDiv(seq, PACKETS_PER_FRAME);
+        MicFrameData f = frameForPacket(seq);
+        if (f == null) return;
+        if (!f.decodePacket(seq, data, offset)) {
+            stats.duplicate();
+            return;
+        }
+        trackPackets();
+        dispatchIfComplete(frameNum, f);
+    }
+
+    // bfManager's bin tracker, or null if it isn't tracking bins. a new tracker picks up from the oldest frame being assembled
+    private SlidingDftBank binTracker() {
+        SlidingDftBank t = bfManager.getBinTracker();
+        if (t != null && t != trackerFed) {
+            trackerFed = t;
+            trackedSeq = oldestFrame * PACKETS_PER_FRAME;
+        }
+        return t;
+    }
+
+    // feeds the bin tracker the packets from trackedSeq on, for as long as they have arrived
+    private void trackPackets() {
+        SlidingDftBank t = binTracker();
+        if (t == null) return;
+        if (trackedSeq < oldestFrame * PACKETS_PER_FRAME || trackedSeq >= (oldestFrame + REORDER_FRAMES) * PACKETS_PER_FRAME) {
+            // the next packet was given up on (or the sender restarted), so the stream has a gap
+            t.reset();
+            trackedSeq = oldestFrame * PACKETS_PER_FRAME;
+        }
+        while (true) {
+            int frameNum = Math.floorDiv(trackedSeq, PACKETS_PER_FRAME);
+            MicFrameData f = window.get(frameNum & (REORDER_FRAMES - 1));
+            if (f == null || f.isClaimed() || f.startSeq != frameNum * PACKETS_PER_FRAME || !f.hasPacket(trackedSeq)) return;
+            track(t, f, trackedSeq++);
+        }
+    }
+
+    // feeds the bin tracker whatever it hasn't had yet of f, which is complete and about to be handed off
+    private void trackRest(MicFrameData f) {
+        SlidingDftBank t = binTracker();
+        if (t == null) return;
+        if (trackedSeq < f.startSeq) {
+            t.reset(); // packets before f were given up on
+            trackedSeq = f.startSeq;
+        }
+        while (trackedSeq < f.startSeq + PACKETS_PER_FRAME) {
+            track(t, f, trackedSeq++);
+        }
+    }
+
+    private void track(SlidingDftBank t, MicFrameData f, int seq) {
+        int s = (seq - f.startSeq) * UdpServer.SAMPLES_PER_MIC;
+        for (int m = 0; m < UdpServer.NUM_MICROPHONES; m++) {
+            if (f.pcm != null) {
+                t.push(m, f.pcm, m * SAMPLES_PER_FRAME + s, UdpServer.SAMPLES_PER_MIC, MicFrameData.PCM_SCALE);
+            } else {
+                t.push(m, f.samples[m], s, UdpServer.SAMPLES_PER_MIC);
             }
-            frame.copyPacket(mdp); // this is a no-op if mdp is not within frame's range
+        }
+        if (t.endPacket(UdpServer.SAMPLES_PER_MIC)) {
+            bfManager.binsUpdated(t);
         }
     }
-}
\ No newline at end of file
+}
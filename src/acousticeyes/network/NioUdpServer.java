@@ -0,0 +1,129 @@
+package acousticeyes.network;
+
+import acousticeyes.util.Histogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/* Alternative to UdpServer built on a non-blocking DatagramChannel. Datagrams are received directly
+ * into the direct buffers of the dispatcher's PacketRing (no copy from a heap array inside the JDK),
+ * the kernel receive buffer is made large enough to absorb bursts from the array board, and every
+ * wakeup drains all queued datagrams before going back to sleep in the selector, rather than paying
+ * a blocking syscall per packet.
+ */
+public class NioUdpServer {
+
+    private static final int RECEIVE_BUFFER_SIZE = 8 * 1024 * 1024; // the OS may clamp this (see net.core.rmem_max)
+
+    private DatagramChannel channel;
+    private Selector selector;
+    private Thread receiveThread;
+    private PacketRing ring;
+    private volatile CaptureJournalWriter journal; // if set, mic data packets are also recorded here
+    private IngestStats stats;
+    private volatile boolean running = true;
+    private final Histogram drainedPerWakeup = new Histogram("datagrams/wakeup", 1, 256);
+
+    public NioUdpServer(MicrophoneDataDispatcher dispatcher) throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        channel.bind(new InetSocketAddress(UdpServer.PORT));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        receiveThread = new Thread(this::processPackets, "NioPacketProcessor");
+        this.ring = dispatcher == null ? null : dispatcher.getPacketRing();
+        this.stats = dispatcher == null ? null : dispatcher.getIngestStats();
+    }
+
+    public void start() {
+        receiveThread.start();
+    }
+
+    // stops receiving, and waits (up to timeoutMs) for the receive thread to finish with the datagrams it's on, so
+    // that the capture journal can then be closed safely
+    public void stop(long timeoutMs) {
+        running = false;
+        selector.wakeup();
+        try {
+            receiveThread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // starts (or with null, stops) recording received mic data packets. the caller is responsible for closing the journal
+    public void setCaptureJournal(CaptureJournalWriter journal) {
+        this.journal = journal;
+    }
+
+    private void capture(ByteBuffer packet, long receiveNanos) {
+        CaptureJournalWriter j = journal;
+        if (j == null) return;
+        try {
+            j.append(packet, receiveNanos);
+        } catch (IOException e) {
+            System.err.println("Stopping capture: " + e);
+            journal = null;
+        }
+    }
+
+    // how many datagrams were pulled off the socket per selector wakeup
+    public Histogram getDrainedPerWakeup() {
+        return drainedPerWakeup;
+    }
+
+    // the receive buffer size actually granted by the OS
+    public int getReceiveBufferSize() throws IOException {
+        return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    }
+
+    private void processPackets() {
+        // packets that can't go into the ring (it's full, or they aren't mic data) are received here and discarded.
+        // buffers are big-endian by default, like the packet header
+        ByteBuffer scratch = ByteBuffer.allocateDirect(UdpServer.PACKET_BUFFER_SIZE);
+        try {
+            while (running) {
+                selector.select();
+                selector.selectedKeys().clear();
+                int drained = 0;
+                while (true) {
+                    ByteBuffer slot = ring == null ? null : ring.tryClaim();
+                    ByteBuffer buffer = slot != null ? slot : scratch;
+                    buffer.clear();
+                    if (channel.receive(buffer) == null) break;
+                    buffer.flip();
+                    drained++;
+                    if (isMicData(buffer)) {
+                        long receiveNanos = System.nanoTime();
+                        capture(buffer, receiveNanos);
+                        if (stats != null) {
+                            stats.packetReceived(receiveNanos); // counted even if the ring is full, which shows up as an overflow
+                        }
+                        if (slot != null) {
+                            ring.publish();
+                        } else if (ring != null) {
+                            ring.overflow();
+                        }
+                    }
+                    // otherwise the slot (if any) just gets claimed again for the next datagram
+                }
+                drainedPerWakeup.record(drained);
+            }
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // see UdpServer for the packet format
+    private static boolean isMicData(ByteBuffer data) {
+        return data.limit() == UdpServer.PACKET_BUFFER_SIZE && data.get(0) == UdpServer.MIC_DATA_MAGIC_NUMBER;
+    }
+}
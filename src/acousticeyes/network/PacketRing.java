@@ -0,0 +1,117 @@
+package acousticeyes.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/* Lock-free single-producer/single-consumer ring of preallocated packet buffers, used to hand raw
+ * datagrams from a receive thread (UdpServer, NioUdpServer, ...) to MicrophoneDataDispatcher's frame
+ * assembly thread. The producer receives straight into a claimed slot and publishes it; the consumer
+ * decodes it in place and advances. Slots are reused, so nothing is allocated per packet.
+ *
+ * Ordering: head/tail are only ever written by one side each, and read by the other side with volatile
+ * loads. advance() writes head with a release store (lazySet); publish() writes tail with a full volatile
+ * store (set). Either way, everything written into a slot before publish() is visible to the consumer
+ * after peek(), and vice versa for advance() and claim().
+ *
+ * An idle consumer can sleep in await() instead of polling: it registers itself as the waiter before
+ * checking the ring one last time, and publish() reads the waiter after its store of tail. That store must
+ * stay a full volatile one: a release store could be reordered after the read of waiter, and then a packet
+ * published while the consumer is falling asleep could be neither seen nor followed by a wakeup.
+ */
+public class PacketRing {
+
+    private final ByteBuffer[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to consume; written only by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next slot to publish; written only by the producer
+    private long cachedHead = 0; // producer's last view of head, to avoid a volatile read per packet
+    private long cachedTail = 0; // consumer's last view of tail
+    private final AtomicLong overflows = new AtomicLong(); // packets dropped because the consumer fell behind
+    private volatile Thread waiter; // consumer thread parked in await(), if any
+
+    // capacity must be a power of 2
+    public PacketRing(int capacity, int slotSize) {
+        if ((capacity & (capacity - 1)) != 0) throw new IllegalArgumentException("ring capacity must be a power of 2");
+        slots = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = ByteBuffer.allocateDirect(slotSize);
+        }
+        mask = capacity - 1;
+    }
+
+    // producer side: returns the cleared buffer for the next slot, or null if the ring is full (in which
+    // case the packet should be dropped, and is counted as an overflow). claiming again without publishing
+    // returns the same slot.
+    public ByteBuffer claim() {
+        ByteBuffer slot = tryClaim();
+        if (slot == null) {
+            overflows.incrementAndGet();
+        }
+        return slot;
+    }
+
+    // producer side: claim() for receiving straight into the slot before it's known whether there is a packet
+    // at all, so a full ring isn't counted. call overflow() if a packet then has to be dropped
+    public ByteBuffer tryClaim() {
+        long t = tail.get();
+        if (t - cachedHead >= slots.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= slots.length) return null;
+        }
+        ByteBuffer slot = slots[(int) t & mask];
+        slot.clear();
+        return slot;
+    }
+
+    // producer side: counts a packet dropped because the ring was full (see tryClaim)
+    public void overflow() {
+        overflows.incrementAndGet();
+    }
+
+    // producer side: makes the claimed slot visible to the consumer. the slot's position and limit
+    // should delimit the packet (i.e., it should already have been flipped)
+    public void publish() {
+        tail.set(tail.get() + 1); // a full volatile store, not lazySet: it must not pass the read of waiter below
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    // consumer side: returns the oldest published packet without removing it, or null if the ring is empty
+    public ByteBuffer peek() {
+        long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail) return null;
+        }
+        return slots[(int) h & mask];
+    }
+
+    // consumer side: sleeps until a packet is published, the thread is unparked, or maxNanos pass
+    public void await(long maxNanos) {
+        waiter = Thread.currentThread();
+        if (peek() == null) {
+            LockSupport.parkNanos(this, maxNanos);
+        }
+        waiter = null;
+    }
+
+    // consumer side: returns the slot obtained from peek() to the producer
+    public void advance() {
+        head.lazySet(head.get() + 1);
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+}
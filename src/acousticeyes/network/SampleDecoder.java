@@ -0,0 +1,296 @@
+package acousticeyes.network;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/* Decodes packed PCM samples of one particular format. SampleFormat picks the decoder once, so the
+ * per-sample loops have no format branching: each subclass hard-codes its width and byte order, and
+ * 16/32-bit samples are read with byte-array / byte-buffer view VarHandles (a single load plus byte
+ * swap if needed), rather than being assembled byte by byte. Unsigned formats are handled by flipping
+ * the top bit, which maps offset-binary onto two's complement without a branch.
+ *
+ * Decoded values are normalized so that full scale is [-1, 1), or, for the short[] variants, 16-bit
+ * signed PCM (wider formats are truncated to their top 16 bits).
+ */
+abstract class SampleDecoder {
+
+    private static final VarHandle SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle BUF_SHORT_BE = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle BUF_SHORT_LE = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle BUF_INT_BE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle BUF_INT_LE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    final int flip; // xor-ed into each raw sample: the sign bit for unsigned formats, 0 for signed ones
+
+    SampleDecoder(int bits, boolean signed) {
+        flip = signed ? 0 : 1 << (bits - 1);
+    }
+
+    static SampleDecoder forFormat(int bytes, boolean signed, boolean bigEndian) {
+        switch (bytes) {
+            case 1:
+                return new Int8(signed);
+            case 2:
+                return bigEndian ? new Int16BE(signed) : new Int16LE(signed);
+            case 3:
+                return bigEndian ? new Int24BE(signed) : new Int24LE(signed);
+            case 4:
+                return bigEndian ? new Int32BE(signed) : new Int32LE(signed);
+        }
+        throw new IllegalArgumentException("unsupported sample size: " + bytes + " bytes");
+    }
+
+    abstract void decode(byte[] data, int offset, int nsamples, double[] dest, int destOffset);
+
+    abstract void decode(ByteBuffer data, int offset, int nsamples, double[] dest, int destOffset);
+
+    abstract void decode(byte[] data, int offset, int nsamples, short[] dest, int destOffset);
+
+    abstract void decode(ByteBuffer data, int offset, int nsamples, short[] dest, int destOffset);
+
+    private static final class Int8 extends SampleDecoder {
+        private static final double SCALE = 1.0 / (1 << 7);
+
+        Int8(boolean signed) {
+            super(8, signed);
+        }
+
+        void decode(byte[] data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (byte) (data[offset + i] ^ flip) * SCALE;
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (byte) (data.get(offset + i) ^ flip) * SCALE;
+            }
+        }
+
+        void decode(byte[] data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) ((byte) (data[offset + i] ^ flip) << 8);
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) ((byte) (data.get(offset + i) ^ flip) << 8);
+            }
+        }
+    }
+
+    private static final class Int16BE extends SampleDecoder {
+        private static final double SCALE = 1.0 / (1 << 15);
+
+        Int16BE(boolean signed) {
+            super(16, signed);
+        }
+
+        void decode(byte[] data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) ((short) SHORT_BE.get(data, offset + 2 * i) ^ flip) * SCALE;
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) ((short) BUF_SHORT_BE.get(data, offset + 2 * i) ^ flip) * SCALE;
+            }
+        }
+
+        void decode(byte[] data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) ((short) SHORT_BE.get(data, offset + 2 * i) ^ flip);
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) ((short) BUF_SHORT_BE.get(data, offset + 2 * i) ^ flip);
+            }
+        }
+    }
+
+    private static final class Int16LE extends SampleDecoder {
+        private static final double SCALE = 1.0 / (1 << 15);
+
+        Int16LE(boolean signed) {
+            super(16, signed);
+        }
+
+        void decode(byte[] data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) ((short) SHORT_LE.get(data, offset + 2 * i) ^ flip) * SCALE;
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) ((short) BUF_SHORT_LE.get(data, offset + 2 * i) ^ flip) * SCALE;
+            }
+        }
+
+        void decode(byte[] data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) ((short) SHORT_LE.get(data, offset + 2 * i) ^ flip);
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) ((short) BUF_SHORT_LE.get(data, offset + 2 * i) ^ flip);
+            }
+        }
+    }
+
+    // there is no 3-byte view, so packed 24-bit samples are assembled from bytes, then sign-extended with a shift pair
+    private static final class Int24BE extends SampleDecoder {
+        private static final double SCALE = 1.0 / (1 << 23);
+
+        Int24BE(boolean signed) {
+            super(24, signed);
+        }
+
+        private int sample(byte[] d, int o) {
+            return ((((d[o] & 0xff) << 16) | ((d[o + 1] & 0xff) << 8) | (d[o + 2] & 0xff)) ^ flip) << 8 >> 8;
+        }
+
+        private int sample(ByteBuffer d, int o) {
+            return ((((d.get(o) & 0xff) << 16) | ((d.get(o + 1) & 0xff) << 8) | (d.get(o + 2) & 0xff)) ^ flip) << 8 >> 8;
+        }
+
+        void decode(byte[] data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = sample(data, offset + 3 * i) * SCALE;
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = sample(data, offset + 3 * i) * SCALE;
+            }
+        }
+
+        void decode(byte[] data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) (sample(data, offset + 3 * i) >> 8);
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) (sample(data, offset + 3 * i) >> 8);
+            }
+        }
+    }
+
+    private static final class Int24LE extends SampleDecoder {
+        private static final double SCALE = 1.0 / (1 << 23);
+
+        Int24LE(boolean signed) {
+            super(24, signed);
+        }
+
+        private int sample(byte[] d, int o) {
+            return ((((d[o + 2] & 0xff) << 16) | ((d[o + 1] & 0xff) << 8) | (d[o] & 0xff)) ^ flip) << 8 >> 8;
+        }
+
+        private int sample(ByteBuffer d, int o) {
+            return ((((d.get(o + 2) & 0xff) << 16) | ((d.get(o + 1) & 0xff) << 8) | (d.get(o) & 0xff)) ^ flip) << 8 >> 8;
+        }
+
+        void decode(byte[] data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = sample(data, offset + 3 * i) * SCALE;
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = sample(data, offset + 3 * i) * SCALE;
+            }
+        }
+
+        void decode(byte[] data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) (sample(data, offset + 3 * i) >> 8);
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) (sample(data, offset + 3 * i) >> 8);
+            }
+        }
+    }
+
+    private static final class Int32BE extends SampleDecoder {
+        private static final double SCALE = 1.0 / (1L << 31);
+
+        Int32BE(boolean signed) {
+            super(32, signed);
+        }
+
+        void decode(byte[] data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = ((int) INT_BE.get(data, offset + 4 * i) ^ flip) * SCALE;
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = ((int) BUF_INT_BE.get(data, offset + 4 * i) ^ flip) * SCALE;
+            }
+        }
+
+        void decode(byte[] data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) (((int) INT_BE.get(data, offset + 4 * i) ^ flip) >> 16);
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) (((int) BUF_INT_BE.get(data, offset + 4 * i) ^ flip) >> 16);
+            }
+        }
+    }
+
+    private static final class Int32LE extends SampleDecoder {
+        private static final double SCALE = 1.0 / (1L << 31);
+
+        Int32LE(boolean signed) {
+            super(32, signed);
+        }
+
+        void decode(byte[] data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = ((int) INT_LE.get(data, offset + 4 * i) ^ flip) * SCALE;
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, double[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = ((int) BUF_INT_LE.get(data, offset + 4 * i) ^ flip) * SCALE;
+            }
+        }
+
+        void decode(byte[] data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) (((int) INT_LE.get(data, offset + 4 * i) ^ flip) >> 16);
+            }
+        }
+
+        void decode(ByteBuffer data, int offset, int nsamples, short[] dest, int destOffset) {
+            for (int i = 0; i < nsamples; i++) {
+                dest[destOffset + i] = (short) (((int) BUF_INT_LE.get(data, offset + 4 * i) ^ flip) >> 16);
+            }
+        }
+    }
+}
@@ -1,47 +1,91 @@
 package acousticeyes.network;
 
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/* Format of the samples in a packet: 1 to 4 bytes (8, 16, 24 or 32-bit packed), signed or unsigned
+ * (offset binary), either byte order. The actual decoding is done by a SampleDecoder specialised for
+ * the format, which is picked once here rather than switching on the format for every sample.
+ */
 public class SampleFormat {
-    public int bytes;
-    public boolean signed;
-    public boolean bigEndian;
+    public final int bytes;
+    public final boolean signed;
+    public final boolean bigEndian;
+    private final SampleDecoder decoder;
 
     public SampleFormat(int bytes, boolean signed, boolean bigEndian) {
         this.bytes = bytes;
         this.signed = signed;
         this.bigEndian = bigEndian;
+        decoder = SampleDecoder.forFormat(bytes, signed, bigEndian);
     }
 
     public double[] decodeSamples(byte[] data, int offset, int nsamples) {
         double[] samples = new double[nsamples];
-        for (int i = 0; i < nsamples; i++) {
-            samples[i] = decodeSample(data, offset);
-            offset += bytes;
-        }
+        decodeSamples(data, offset, nsamples, samples, 0);
         return samples;
     }
 
-    private double decodeSample(byte[] data, int offset) {
-        switch(bytes) {
-            case 1:
-                if (signed) {
-                    return data[offset] / 128.0;
-                } else {
-                    return data[offset] / 128.0 - 1.0;
-                }
-            case 2:
-                byte msb = data[offset + (bigEndian ? 0 : 1)];
-                byte lsb = data[offset + (bigEndian ? 1 : 0)];
-                int val = (((int) msb) << 8) | (((int) lsb) & 0xff);
-                if (signed) {
-                    return val / 32768.0;
-                } else {
-                    return ((short) val) / 32768.0 - 1.0;
-                }
-        }
-        return 0;
+    // decodes into an existing array, starting at dest[destOffset]. full scale is [-1, 1)
+    public void decodeSamples(byte[] data, int offset, int nsamples, double[] dest, int destOffset) {
+        decoder.decode(data, offset, nsamples, dest, destOffset);
+    }
+
+    // same as above, but reading from a (possibly direct) buffer using absolute indexing
+    public void decodeSamples(ByteBuffer data, int offset, int nsamples, double[] dest, int destOffset) {
+        decoder.decode(data, offset, nsamples, dest, destOffset);
+    }
+
+    // decodes to 16-bit signed PCM (full scale = 32768) rather than doubles. 24 and 32-bit samples keep their top 16 bits
+    public void decodeSamples(byte[] data, int offset, int nsamples, short[] dest, int destOffset) {
+        decoder.decode(data, offset, nsamples, dest, destOffset);
+    }
+
+    public void decodeSamples(ByteBuffer data, int offset, int nsamples, short[] dest, int destOffset) {
+        decoder.decode(data, offset, nsamples, dest, destOffset);
     }
 
     public int advance(int offset, int nsamples) {
         return offset + nsamples * bytes;
     }
+
+    @Override
+    public String toString() {
+        return (bytes * 8) + "-bit " + (signed ? "signed" : "unsigned") + (bytes > 1 ? (bigEndian ? " BE" : " LE") : "");
+    }
+
+    // decoding throughput benchmark, in samples/sec, for each supported format, decoding one packet's worth
+    // of samples at a time the same way MicFrameData does
+    public static void main(String[] args) {
+        int nsamples = UdpServer.NUM_MICROPHONES * UdpServer.SAMPLES_PER_MIC;
+        int reps = 200_000;
+        Random r = new Random(0);
+        double[] dest = new double[nsamples];
+        short[] pcm = new short[nsamples];
+        for (int bytes = 1; bytes <= 4; bytes++) {
+            byte[] data = new byte[nsamples * bytes];
+            r.nextBytes(data);
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data).flip();
+            for (boolean bigEndian : new boolean[]{true, false}) {
+                if (bytes == 1 && !bigEndian) continue;
+                SampleFormat fmt = new SampleFormat(bytes, true, bigEndian);
+                for (int pass = 0; pass < 2; pass++) { // the first pass is warmup
+                    long t0 = System.nanoTime();
+                    for (int i = 0; i < reps; i++) fmt.decodeSamples(data, 0, nsamples, dest, 0);
+                    long t1 = System.nanoTime();
+                    for (int i = 0; i < reps; i++) fmt.decodeSamples(direct, 0, nsamples, dest, 0);
+                    long t2 = System.nanoTime();
+                    for (int i = 0; i < reps; i++) fmt.decodeSamples(direct, 0, nsamples, pcm, 0);
+                    long t3 = System.nanoTime();
+                    if (pass == 1) {
+                        double n = (double) nsamples * reps * 1e3;
+                        System.out.printf("%-16s byte[]->double %7.1f M/s, direct->double %7.1f M/s, direct->short %7.1f M/s%n",
+                                fmt, n / (t1 - t0), n / (t2 - t1), n / (t3 - t2));
+                    }
+                }
+            }
+        }
+        System.out.println(dest[r.nextInt(nsamples)] + pcm[r.nextInt(nsamples)]); // keep the results live
+    }
 }
@@ -0,0 +1,7 @@
+package acousticeyes.network;
+
+/* How MicFrameData holds its samples. */
+public enum SampleStorage {
+    DOUBLE, // samples[mic][sample], normalized to [-1, 1)
+    INT16   // pcm[mic * SAMPLES_PER_FRAME + sample], 16-bit signed full scale; a quarter of the memory of DOUBLE
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 
 public class UdpServer {
     public static final int PORT = 42069;
@@ -11,39 +12,88 @@ public class UdpServer {
     public static final byte MIC_DATA_MAGIC_NUMBER = 0x12;
     public static final byte VIDEO_DATA_MAGIC_NUMBER = 0x34;
 
+    /* Packet format:
+     * - 1 byte magic number (packet type)
+     * - 4 byte big endian integer sequence number
+     * - NUM_MICROPHONES * SAMPLES_PER_MIC * SAMPLE_FORMAT.bytes bytes of microphone data:
+     *   [ samples for mic 0] [ samples for mic 1] ...
+     */
     public static final int NUM_MICROPHONES = 96;
-    private static final SampleFormat SAMPLE_FORMAT = new SampleFormat(2, true, true);
+    public static final SampleFormat SAMPLE_FORMAT = new SampleFormat(2, true, true);
     public static final int SAMPLES_PER_MIC = 7;
-    private static final int HEADER_SIZE = 5;
-    private static final int PACKET_BUFFER_SIZE = HEADER_SIZE + NUM_MICROPHONES * SAMPLES_PER_MIC * SAMPLE_FORMAT.bytes;
+    public static final int HEADER_SIZE = 5;
+    static final int PACKET_BUFFER_SIZE = HEADER_SIZE + NUM_MICROPHONES * SAMPLES_PER_MIC * SAMPLE_FORMAT.bytes;
 
     private DatagramSocket socket;
     private Thread receiveThread;
-    private MicrophoneDataDispatcher dispatcher;
+    private PacketRing ring;
+    private volatile CaptureJournalWriter journal; // if set, mic data packets are also recorded here
+    private IngestStats stats;
+    private volatile boolean running = true;
 
     public UdpServer(MicrophoneDataDispatcher dispatcher) throws SocketException {
         socket = new DatagramSocket(PORT);
         receiveThread = new Thread(this::processPackets, "PacketProcessor");
-        this.dispatcher = dispatcher;
+        this.ring = dispatcher == null ? null : dispatcher.getPacketRing();
+        this.stats = dispatcher == null ? null : dispatcher.getIngestStats();
     }
 
     public void start() {
         receiveThread.start();
     }
 
+    // stops receiving, and waits (up to timeoutMs) for the receive thread to finish with the packet it's on, so
+    // that the capture journal can then be closed safely
+    public void stop(long timeoutMs) {
+        running = false;
+        socket.close(); // makes a blocked receive() throw
+        try {
+            receiveThread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // starts (or with null, stops) recording received mic data packets. the caller is responsible for closing the journal
+    public void setCaptureJournal(CaptureJournalWriter journal) {
+        this.journal = journal;
+    }
+
+    private void capture(byte[] data, int length, long receiveNanos) {
+        CaptureJournalWriter j = journal;
+        if (j == null) return;
+        try {
+            j.append(data, 0, length, receiveNanos);
+        } catch (IOException e) {
+            System.err.println("Stopping capture: " + e);
+            journal = null;
+        }
+    }
+
     private void processPackets() {
         byte[] packetBuffer = new byte[PACKET_BUFFER_SIZE];
-        while (true) {
-            DatagramPacket packet = new DatagramPacket(packetBuffer, PACKET_BUFFER_SIZE);
+        DatagramPacket packet = new DatagramPacket(packetBuffer, PACKET_BUFFER_SIZE);
+        while (running) {
+            packet.setLength(PACKET_BUFFER_SIZE); // receive() shrinks the length to that of the last datagram
             try {
                 socket.receive(packet);
             } catch (IOException e) {
+                if (!running) return; // closed by stop()
                 throw new RuntimeException(e);
             }
+            long receiveNanos = System.nanoTime();
             byte[] data = packet.getData();
             if (data[0] == MIC_DATA_MAGIC_NUMBER) {
-                if (dispatcher != null) {
-                    dispatcher.accept(decodePacket(data)); // do we need to split this off to a different thread to avoid packet loss?
+                if (packet.getLength() != PACKET_BUFFER_SIZE) continue; // truncated or malformed
+                capture(data, PACKET_BUFFER_SIZE, receiveNanos);
+                if (ring != null) {
+                    stats.packetReceived(receiveNanos);
+                    // hand off to the dispatcher's assembly thread; if it has fallen this far behind, drop the packet
+                    ByteBuffer slot = ring.claim();
+                    if (slot != null) {
+                        slot.put(data, 0, PACKET_BUFFER_SIZE).flip();
+                        ring.publish();
+                    }
                 }
             } else if (data[0] == VIDEO_DATA_MAGIC_NUMBER) {
             } else {
@@ -51,22 +101,4 @@ public class UdpServer {
             }
         }
     }
-
-    /* Packet format:
-     * - 1 byte magic number (packet type)
-     * - 4 byte big endian integer sequence number
-     * - NUM_MICROPHONES * SAMPLES_PER_MIC * SAMPLE_FORMAT.bytes bytes of microphone data:
-     *   [ samples for mic 0] [ samples for mic 1] ...
-     */
-    private MicDataPacket decodePacket(byte[] data) {
-        int offset = 5;
-        int seq = (data[1] << 24) | ((data[2] << 16) & 0xff0000) | ((data[3] << 8) & 0xff00) | (data[4] & 0xff);
-        double[][] samples = new double[NUM_MICROPHONES][];
-        for (int m = 0; m < NUM_MICROPHONES; m++) {
-            samples[m] = SAMPLE_FORMAT.decodeSamples(data, offset, SAMPLES_PER_MIC);
-            offset = SAMPLE_FORMAT.advance(offset, SAMPLES_PER_MIC);
-        }
-        return new MicDataPacket(seq, samples);
-    }
-
 }
@@ -2,21 +2,33 @@ package acousticeyes.ui;
 
 import acousticeyes.beamforming.BeamformingManager;
 import acousticeyes.beamforming.PhasedArray;
+import acousticeyes.network.CaptureJournalWriter;
 import acousticeyes.network.MicrophoneDataDispatcher;
+import acousticeyes.network.NioUdpServer;
+import acousticeyes.network.SampleStorage;
 import acousticeyes.network.UdpServer;
 
 import javax.swing.*;
-import java.net.SocketException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class AcousticEyes extends JFrame {
 
+    // ingest engine: NioUdpServer (DatagramChannel, batched drain) by default; false goes back to the original UdpServer
+    private static final boolean USE_NIO_SERVER = true;
+    private static final long STATS_LOG_PERIOD_MS = 10_000;
+    private static final long STOP_TIMEOUT_MS = 1000;
+
     private PhasedArray arr = PhasedArray.radial(8, 12, 0.05, 0.3, 1.25, 1, 0);
     private MainPanel mp = new MainPanel();
     private BeamformingManager bm = new BeamformingManager(arr, mp);
-    private MicrophoneDataDispatcher mdd = new MicrophoneDataDispatcher(bm);
-    private UdpServer server;
+    private MicrophoneDataDispatcher mdd = new MicrophoneDataDispatcher(bm, SampleStorage.INT16); // the board sends 16-bit samples
+    private volatile UdpServer server;
+    private volatile NioUdpServer nioServer;
 
-    public AcousticEyes() {
+    // captureDir - if not null, the raw mic data stream is recorded to a capture journal in this directory
+    public AcousticEyes(Path captureDir) {
         super("AcousticEyes");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLayout(null);
@@ -26,14 +38,49 @@ public class AcousticEyes extends JFrame {
 
         setSize(1200, 900);
         setVisible(true);
+        mdd.getIngestStats().startLogging(STATS_LOG_PERIOD_MS);
+        CaptureJournalWriter journal = null;
+        if (captureDir != null) {
+            try {
+                journal = new CaptureJournalWriter(captureDir);
+            } catch (IOException e) {
+                System.err.println("Can't record to " + captureDir + ", running without capture: " + e);
+            }
+        }
+        if (journal != null) {
+            CaptureJournalWriter j = journal;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                // the receive thread must be done appending before the journal is unmapped
+                if (nioServer != null) {
+                    nioServer.stop(STOP_TIMEOUT_MS);
+                }
+                if (server != null) {
+                    server.stop(STOP_TIMEOUT_MS);
+                }
+                try {
+                    j.close();
+                } catch (IOException ignored) {
+                }
+            }));
+        }
         try {
-            server = new UdpServer(mdd);
-            server.start();
-        } catch (SocketException e) {
+            if (USE_NIO_SERVER) {
+                nioServer = new NioUdpServer(mdd);
+                nioServer.setCaptureJournal(journal);
+                nioServer.start();
+            } else {
+                server = new UdpServer(mdd);
+                server.setCaptureJournal(journal);
+                server.start();
+            }
+        } catch (IOException e) {
+            // e.g. the port is taken; the window stays up, but no mic data will arrive
+            System.err.println("Can't start the " + (USE_NIO_SERVER ? "NIO " : "") + "UDP server: " + e);
         }
     }
 
+    // Usage: AcousticEyes [capture directory]
     public static void main(String[] args) {
-        new AcousticEyes();
+        new AcousticEyes(args.length > 0 ? Paths.get(args[0]) : null);
     }
 }
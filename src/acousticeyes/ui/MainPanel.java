@@ -21,9 +21,12 @@ public class MainPanel extends JPanel {
         }
     }
 
+    // hm is only valid during the call (BeamformingManager reuses its heatmap buffers), so it's rendered
+    // right away on the calling thread, and only the finished image is handed to the event thread
     public void heatmapUpdated(double[][] hm) {
+        BufferedImage img = ColorMap.DEFAULT.render(hm, scale);
         SwingUtilities.invokeLater(() -> {
-            image = ColorMap.DEFAULT.render(hm, scale);
+            image = img;
             repaint();
         });
     }
@@ -0,0 +1,117 @@
+package acousticeyes.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Radix-2 FFT of one fixed (power-of-2) size, on plain double[]s. The twiddle factors and bit-reversal
+ * permutation are computed once when the plan is made; transforms then run in place on the caller's
+ * arrays, so they allocate nothing. Same sign convention and scaling as Utils.fft (e^(-2 pi i k n / N),
+ * not normalized). transformReal does a real-input transform of the plan's size as a complex transform of
+ * half the size plus a post-processing pass, about half the work of the full complex transform.
+ *
+ * Plans are immutable and hold no per-transform state, so one plan can be used by any number of threads
+ * at once. There is one per size, shared through forSize(), so each size's tables are only built once.
+ */
+public class FftPlan {
+
+    private static final Map<Integer, FftPlan> plans = new ConcurrentHashMap<>();
+
+    public final int size;
+    private final double[] twRe, twIm; // e^(-2 pi i k / size) for k < size / 2
+    private final int[] swaps; // pairs of indices exchanged by the bit-reversal permutation
+    private final int[] halfSwaps; // same for size / 2, for transformReal
+
+    private FftPlan(int size) {
+        if (size < 1 || (size & (size - 1)) != 0) throw new IllegalArgumentException("fft size must be a power of 2");
+        this.size = size;
+        twRe = new double[size / 2];
+        twIm = new double[size / 2];
+        for (int k = 0; k < size / 2; k++) {
+            double a = -2 * Math.PI * k / size;
+            twRe[k] = Math.cos(a);
+            twIm[k] = Math.sin(a);
+        }
+        swaps = bitReversalSwaps(size);
+        halfSwaps = bitReversalSwaps(Math.max(size / 2, 1));
+    }
+
+    private static int[] bitReversalSwaps(int size) {
+        int bits = Integer.numberOfTrailingZeros(size);
+        int n = 0;
+        int[] s = new int[size];
+        for (int i = 0; i < size; i++) {
+            int rev = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            if (rev > i) {
+                s[n++] = i;
+                s[n++] = rev;
+            }
+        }
+        return Arrays.copyOf(s, n);
+    }
+
+    // the plan for this size, built on first use
+    public static FftPlan forSize(int size) {
+        FftPlan plan = plans.get(size);
+        return plan != null ? plan : plans.computeIfAbsent(size, FftPlan::new);
+    }
+
+    // in place on split real and imaginary parts, re[0 .. size-1] and im[0 .. size-1]
+    public void transform(double[] re, double[] im) {
+        transform(re, im, size, 1, swaps);
+    }
+
+    // Real-input transform: x[0 .. size-1] in, bins 0 .. size/2 - 1 out in re and im (the rest of the spectrum is
+    // their mirror image). x is left alone. The even and odd samples are packed into the real and imaginary
+    // parts of a size/2 complex transform, whose output is then separated into the two halves' spectra E and
+    // O, giving X[k] = E[k] + e^(-2 pi i k / size) O[k].
+    public void transformReal(double[] x, double[] re, double[] im) {
+        if (size < 2) throw new IllegalArgumentException("real fft size must be at least 2");
+        int half = size / 2;
+        for (int n = 0; n < half; n++) {
+            re[n] = x[2 * n];
+            im[n] = x[2 * n + 1];
+        }
+        transform(re, im, half, 2, halfSwaps);
+        // bin 0: E and O are the real and imaginary parts
+        re[0] = re[0] + im[0];
+        im[0] = 0;
+        // bins k and half - k together, since each needs the other's packed value
+        for (int k = 1, j = half - 1; k <= j; k++, j--) {
+            double zr = re[k], zi = im[k], yr = re[j], yi = im[j];
+            double er = (zr + yr) / 2, ei = (zi - yi) / 2; // E[k]; E[j] is its conjugate
+            double or = (zi + yi) / 2, oi = (yr - zr) / 2; // O[k]; O[j] is its conjugate
+            re[k] = er + twRe[k] * or - twIm[k] * oi;
+            im[k] = ei + twRe[k] * oi + twIm[k] * or;
+            re[j] = er + twRe[j] * or + twIm[j] * oi;
+            im[j] = -ei - twRe[j] * oi + twIm[j] * or;
+        }
+    }
+
+    // in place transform of n elements, n = size / twStride, with that many twiddles skipped at a time
+    private void transform(double[] re, double[] im, int n, int twStride, int[] swaps) {
+        for (int i = 0; i < swaps.length; i += 2) {
+            int a = swaps[i], b = swaps[i + 1];
+            double t = re[a];
+            re[a] = re[b];
+            re[b] = t;
+            t = im[a];
+            im[a] = im[b];
+            im[b] = t;
+        }
+        for (int half = 1, step = n / 2 * twStride; half < n; half <<= 1, step >>= 1) {
+            for (int i = 0; i < n; i += 2 * half) {
+                for (int j = 0, k = 0; j < half; j++, k += step) {
+                    int p = i + j, q = p + half;
+                    double wr = twRe[k], wi = twIm[k];
+                    double tr = wr * re[q] - wi * im[q];
+                    double ti = wr * im[q] + wi * re[q];
+                    re[q] = re[p] - tr;
+                    im[q] = im[p] - ti;
+                    re[p] += tr;
+                    im[p] += ti;
+                }
+            }
+        }
+    }
+}
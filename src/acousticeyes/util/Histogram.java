@@ -0,0 +1,76 @@
+package acousticeyes.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Fixed-bucket histogram that can be recorded into from any thread without locking or allocating.
+ * Values are bucketed linearly by bucketWidth; anything past the last bucket lands in the last bucket
+ * (the exact maximum is tracked separately).
+ */
+public class Histogram {
+
+    private final String name;
+    private final long bucketWidth;
+    private final AtomicLongArray counts;
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    public Histogram(String name, long bucketWidth, int buckets) {
+        this.name = name;
+        this.bucketWidth = bucketWidth;
+        this.counts = new AtomicLongArray(buckets);
+    }
+
+    public void record(long value) {
+        int b = (int) Math.min(Math.max(value, 0) / bucketWidth, counts.length() - 1);
+        counts.incrementAndGet(b);
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public double mean() {
+        long n = total.get();
+        return n == 0 ? 0 : sum.get() / (double) n;
+    }
+
+    public long max() {
+        return total.get() == 0 ? 0 : max.get();
+    }
+
+    // upper edge of the bucket containing the p-th quantile (0 <= p <= 1)
+    public long percentile(double p) {
+        long target = (long) Math.ceil(p * total.get());
+        long seen = 0;
+        for (int b = 0; b < counts.length(); b++) {
+            seen += counts.get(b);
+            if (seen >= target && seen > 0) {
+                return b == counts.length() - 1 ? max() : (b + 1) * bucketWidth;
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int b = 0; b < counts.length(); b++) {
+            counts.set(b, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(Long.MIN_VALUE);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: n=%d mean=%.1f p50=%d p99=%d max=%d",
+                name, count(), mean(), percentile(0.5), percentile(0.99), max());
+    }
+}
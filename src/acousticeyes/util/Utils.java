@@ -85,79 +85,33 @@ public class Utils {
         return dft(product(x, window), 0, x.length, 1);
     }
 
+    // Complex-valued FFTs, for convenience; see FftPlan for allocation-free transforms on double[]s
     public static Complex[] fft(double[] x, int start, double[] window) {
         int len = window.length;
-        if ((len & (len - 1)) != 0) throw new IllegalArgumentException("fft input must have power-of-2 size");
-        Complex[] cx = new Complex[len];
+        double[] re = new double[len];
         for (int i=0; i < len; i++) {
-            cx[i] = new Complex(x[start + i] * window[i], 0);
-        }
-        return fft(cx);
-    }
-
-    private static int reverseBits(int x, int bits) {
-        int res = 0;
-        int mask = 1 << (bits - 1);
-        for (int b = 0; b < bits; b++) {
-            if ((x & 1) == 1) {
-                res |= mask;
-            }
-            x >>= 1;
-            mask >>= 1;
-        }
-        return res;
-    }
-
-    private static int fftCacheBits = -1;
-    private static int fftCacheSize = -1;
-    private static Complex[] twiddleCache;
-    private static int[] bitReversalCache;
-
-    private static void updateTwiddleCache(int bits) {
-        if (fftCacheBits == bits) return;
-        fftCacheBits = bits;
-        fftCacheSize = 1 << (bits-1);
-        twiddleCache = new Complex[fftCacheSize];
-        bitReversalCache = new int[fftCacheSize*2];
-        for (int i = 0; i < fftCacheSize; i++) {
-            twiddleCache[i] = Complex.expi(-2*Math.PI*i/(fftCacheSize*2));
-        }
-        for (int i = 0; i < bitReversalCache.length; i++) {
-            bitReversalCache[i] = reverseBits(i, fftCacheBits);
+            re[i] = x[start + i] * window[i];
         }
+        return fft(re, new double[len]);
     }
 
     public static Complex[] fft(Complex[] x) {
         int N = x.length;
-        int bits = Integer.numberOfTrailingZeros(N);
-        updateTwiddleCache(bits);
-        Complex[] out = new Complex[N];
-        Complex[] res = new Complex[N];
-
-        // first reorder inputs with a bit-reversal permutation
-        for (int i = 0; i < N; i ++) {
-            int rev = bitReversalCache[i];//reverseBits(i, bits);
-            out[i] = x[rev]; // equivalently, out[rev] = x[i], since bit reversal is an involution
-            res[i] = new Complex(0,0);
+        double[] re = new double[N];
+        double[] im = new double[N];
+        for (int i = 0; i < N; i++) {
+            re[i] = x[i].a;
+            im[i] = x[i].b;
         }
+        return fft(re, im);
+    }
 
-        int S = 2;
-        Complex tmp = new Complex(0,0);
-        while (S <= N) {
-            int halfS = S >> 1;
-            for (int i = 0; i < N; i += S) {
-                for (int j = 0; j < halfS; j++) {
-                    Complex tw = twiddleCache[j * N / S];
-                    int idx = i + j;
-                    Complex.mul(tmp, tw, out[idx + halfS]);
-                    Complex.add(res[idx], out[idx], tmp);
-                    Complex.sub(res[idx + halfS], out[idx], tmp);
-                }
-            }
-            Complex[] temp = res;
-            res = out;
-            out = temp;
-            S *= 2;
+    // transforms re and im in place (the plan for their size checks that it's a power of 2)
+    private static Complex[] fft(double[] re, double[] im) {
+        FftPlan.forSize(re.length).transform(re, im);
+        Complex[] out = new Complex[re.length];
+        for (int i = 0; i < re.length; i++) {
+            out[i] = new Complex(re[i], im[i]);
         }
         return out;
     }